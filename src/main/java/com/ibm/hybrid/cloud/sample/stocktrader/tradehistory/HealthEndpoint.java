@@ -14,6 +14,7 @@ package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory;
 
 import javax.inject.Inject;
 
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.ingest.IngestionService;
 import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.kafka.Consumer;
 
 import org.eclipse.microprofile.health.Health;
@@ -27,13 +28,20 @@ public class HealthEndpoint implements HealthCheck {
     @Inject
     private Consumer kafka;
 
+    @Inject
+    private IngestionService ingestion;
+
     @Override
     public HealthCheckResponse call() {
-        //TODO: add checks for mongo, kafka, etc
         HealthCheckResponseBuilder builder = HealthCheckResponse.named("Consumer")
-        .withData("kafka", kafka.isHealthy() ? "available" : "down");
+        .withData("kafka", kafka.isHealthy() ? "available" : "down")
+        .withData("ingestion", ingestion.getState().name().toLowerCase())
+        .withData("ingestionFailures", ingestion.getFailures());
+        if (ingestion.getLastFailure() != null) {
+            builder.withData("lastFailure", ingestion.getLastFailure());
+        }
 
-        if (kafkaReady()) {
+        if (kafkaReady() && ingestionReady()) {
             return builder.up().build();
         }
 
@@ -44,4 +52,10 @@ public class HealthEndpoint implements HealthCheck {
         return kafka != null && kafka.isHealthy();
     }
 
-}
\ No newline at end of file
+    // down while ingestion is backing off after a failure, or once it has stopped
+    private boolean ingestionReady() {
+        IngestionService.State state = ingestion.getState();
+        return state == IngestionService.State.STARTING || state == IngestionService.State.CONSUMING;
+    }
+
+}
@@ -0,0 +1,495 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.client;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+//Logging (JSR 47)
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.eclipse.microprofile.metrics.annotation.Metric;
+import org.eclipse.microprofile.rest.client.RestClientBuilder;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+
+/**
+ * In-process cache of stock quotes, shared by every request. A quote is served from the cache
+ * for QUOTE_CACHE_TTL_MS after it was fetched. Once it is older than QUOTE_CACHE_REFRESH_AHEAD_MS
+ * it is still served, but a background refresh is started, so popular symbols are normally
+ * refreshed before anyone has to wait for them. Concurrent misses for the same symbol share one
+ * call to the quote service. A quote that can't be refreshed is served stale rather than failing
+ * the request, for up to QUOTE_CACHE_MAX_STALE_MS past its expiry, and reported as stale.
+ * <p>
+ * Calls to the quote service are made with the Rest Client's asynchronous methods on the
+ * concurrent/quoteExecutor pool, whose bounded size and queue are the bulkhead between the quote
+ * service and everything else; a call the pool can't take fails straight away. Symbols missing
+ * from the cache are fetched concurrently, and a lookup waits at most QUOTE_DEADLINE_MS for all
+ * of them, so it costs the slowest call rather than the sum of them. A single call for all quotes
+ * is tried first when several are missing, but only for QUOTE_BATCH_DEADLINE_MS of that.
+ */
+@ApplicationScoped
+public class QuoteCache {
+
+    private static Logger logger = Logger.getLogger(QuoteCache.class.getName());
+
+    // key for the single flight of a call for all cached quotes
+    private static final String ALL_QUOTES = "*";
+
+    @Inject
+    @RestClient
+    private StockQuoteClient stockQuoteClient;
+
+    @Inject
+    private Config config;
+
+    @Resource(lookup = "concurrent/quoteExecutor")
+    private ManagedExecutorService executor;
+
+    @Inject
+    @ConfigProperty(name = "QUOTE_CACHE_TTL_MS", defaultValue = "30000")
+    private long TTL_MS;
+
+    @Inject
+    @ConfigProperty(name = "QUOTE_CACHE_REFRESH_AHEAD_MS", defaultValue = "20000")
+    private long REFRESH_AHEAD_MS;
+
+    // how long past its expiry a quote that can't be refreshed is still served
+    @Inject
+    @ConfigProperty(name = "QUOTE_CACHE_MAX_STALE_MS", defaultValue = "300000")
+    private long MAX_STALE_MS;
+
+    @Inject
+    @ConfigProperty(name = "QUOTE_CACHE_MAX_SIZE", defaultValue = "10000")
+    private int MAX_SIZE;
+
+    // the longest a lookup waits for the quote service, however many symbols it needs
+    @Inject
+    @ConfigProperty(name = "QUOTE_DEADLINE_MS", defaultValue = "2000")
+    private long DEADLINE_MS;
+
+    // the part of the deadline given to the call for all quotes before symbols are fetched one
+    // by one, so a slow call still leaves them time
+    @Inject
+    @ConfigProperty(name = "QUOTE_BATCH_DEADLINE_MS", defaultValue = "500")
+    private long BATCH_DEADLINE_MS;
+
+    @Inject
+    @Metric(name = "quoteCache.hits", absolute = true, description = "Quotes served from the cache")
+    private Counter hits;
+
+    @Inject
+    @Metric(name = "quoteCache.misses", absolute = true, description = "Quotes not in the cache or expired")
+    private Counter misses;
+
+    @Inject
+    @Metric(name = "quoteCache.loads", absolute = true, description = "Calls made to the quote service")
+    private Counter loads;
+
+    @Inject
+    @Metric(name = "quoteCache.refreshes", absolute = true, description = "Background refreshes started ahead of expiry")
+    private Counter refreshes;
+
+    @Inject
+    @Metric(name = "quoteCache.staleServed", absolute = true, description = "Expired quotes served because a refresh failed")
+    private Counter staleServed;
+
+    @Inject
+    @Metric(name = "quoteCache.unavailable", absolute = true, description = "Quotes not found, failed or past the deadline")
+    private Counter unavailable;
+
+    private StockQuoteClient asyncClient;
+
+    // the time quotes are fetched and aged by; deadlines are always kept in real time
+    private LongSupplier clock = System::currentTimeMillis;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final Quote quote;
+        final long fetched;
+
+        Entry(Quote quote, long fetched) {
+            this.quote = quote;
+            this.fetched = fetched;
+        }
+    }
+
+    /**
+     * The quotes a lookup found, the symbols it couldn't price because their call failed or was
+     * still outstanding at the deadline, and the symbols priced with an expired quote because it
+     * couldn't be refreshed.
+     */
+    public static class Quotes {
+        private final Map<String, Quote> quotes;
+        private final Set<String> unavailable;
+        private final Set<String> stale;
+
+        public Quotes(Map<String, Quote> quotes, Set<String> unavailable) {
+            this(quotes, unavailable, Collections.emptySet());
+        }
+
+        public Quotes(Map<String, Quote> quotes, Set<String> unavailable, Set<String> stale) {
+            this.quotes = Collections.unmodifiableMap(quotes);
+            this.unavailable = Collections.unmodifiableSet(unavailable);
+            this.stale = Collections.unmodifiableSet(stale);
+        }
+
+        public Map<String, Quote> getQuotes() {
+            return quotes;
+        }
+
+        public Set<String> getUnavailable() {
+            return unavailable;
+        }
+
+        public Set<String> getStale() {
+            return stale;
+        }
+
+        public boolean isComplete() {
+            return unavailable.isEmpty();
+        }
+    }
+
+    // only for the proxy CDI puts in front of the application scoped instance
+    public QuoteCache() {
+    }
+
+    // for tests, without a container: calls go straight to the client and counts are kept here
+    QuoteCache(StockQuoteClient client, LongSupplier clock, long ttlMs, long refreshAheadMs, long maxStaleMs,
+            int maxSize, long deadlineMs, long batchDeadlineMs) {
+        this.asyncClient = client;
+        this.clock = clock;
+        TTL_MS = ttlMs;
+        REFRESH_AHEAD_MS = refreshAheadMs;
+        MAX_STALE_MS = maxStaleMs;
+        MAX_SIZE = maxSize;
+        DEADLINE_MS = deadlineMs;
+        BATCH_DEADLINE_MS = batchDeadlineMs;
+        hits = new LocalCounter();
+        misses = new LocalCounter();
+        loads = new LocalCounter();
+        refreshes = new LocalCounter();
+        staleServed = new LocalCounter();
+        unavailable = new LocalCounter();
+    }
+
+    private static class LocalCounter implements Counter {
+        private final AtomicLong count = new AtomicLong();
+
+        @Override
+        public void inc() {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void inc(long n) {
+            count.addAndGet(n);
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+    /**
+     * Builds the client the quote calls are made with, from the same mp-rest settings as the
+     * injected one but running its asynchronous calls on the quote executor. Without a URL to
+     * build it from, the injected client is used and its calls run on the runtime's executor.
+     */
+    @PostConstruct
+    void init() {
+        String prefix = StockQuoteClient.class.getName() + "/mp-rest/";
+        Optional<String> url = config.getOptionalValue(prefix + "url", String.class);
+        if (!url.isPresent()) {
+            url = config.getOptionalValue(prefix + "uri", String.class);
+        }
+        if (url.isPresent()) {
+            asyncClient = RestClientBuilder.newBuilder()
+                .baseUri(URI.create(url.get()))
+                .executorService(executor)
+                // an abandoned call gives its thread back once the deadline has passed
+                .readTimeout(DEADLINE_MS, TimeUnit.MILLISECONDS)
+                .build(StockQuoteClient.class);
+        } else {
+            logger.warning("No " + prefix + "url set, quote calls will not run on concurrent/quoteExecutor");
+            asyncClient = stockQuoteClient;
+        }
+    }
+
+    @Gauge(name = "quoteCache.size", absolute = true, unit = MetricUnits.NONE, description = "Symbols in the quote cache")
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return the current quote for the symbol, or null if none could be had within the deadline
+     */
+    public Quote getQuote(String jwt, String symbol) {
+        return getQuotes(jwt, Collections.singleton(symbol)).getQuotes().get(symbol);
+    }
+
+    /**
+     * Quotes for several symbols. Fresh ones come from the cache; when more than one is missing
+     * they are fetched with a single call for all cached quotes, which also fills the cache for
+     * every other symbol. Anything that call hasn't priced within QUOTE_BATCH_DEADLINE_MS is
+     * fetched individually, all at once, in the rest of the deadline; a batch that arrives in the
+     * meantime is still used. Whatever hasn't arrived by the deadline is reported as unavailable.
+     */
+    public Quotes getQuotes(String jwt, Collection<String> symbols) {
+        long start = System.currentTimeMillis();
+        long deadline = start + DEADLINE_MS;
+        long now = clock.getAsLong();
+        Map<String, Quote> quotes = new LinkedHashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (String symbol : symbols) {
+            Quote quote = cached(jwt, symbol, now);
+            if (quote != null) {
+                quotes.put(symbol, quote);
+            } else {
+                missing.add(symbol);
+            }
+        }
+        misses.inc(missing.size());
+
+        CompletableFuture<Map<String, Entry>> batch = null;
+        if (missing.size() > 1) {
+            batch = loadAll(jwt);
+            Map<String, Entry> all = await(batch, Math.min(deadline, start + BATCH_DEADLINE_MS), ALL_QUOTES);
+            if (all != null) {
+                for (Iterator<String> i = missing.iterator(); i.hasNext();) {
+                    String symbol = i.next();
+                    if (all.containsKey(symbol)) {
+                        quotes.put(symbol, all.get(symbol).quote);
+                        i.remove();
+                    }
+                }
+                batch = null;
+            }
+        }
+
+        Map<String, CompletableFuture<Entry>> loading = new LinkedHashMap<>();
+        for (String symbol : missing) {
+            loading.put(symbol, batch == null ? load(jwt, symbol) : firstOf(batch, symbol, load(jwt, symbol)));
+        }
+        Set<String> unpriced = new LinkedHashSet<>();
+        Set<String> stale = new LinkedHashSet<>();
+        for (Map.Entry<String, CompletableFuture<Entry>> load : loading.entrySet()) {
+            Entry entry = await(load.getValue(), deadline, load.getKey());
+            if (entry != null) {
+                quotes.put(load.getKey(), entry.quote);
+                if (clock.getAsLong() - entry.fetched >= TTL_MS) {
+                    stale.add(load.getKey());
+                }
+            } else {
+                unpriced.add(load.getKey());
+            }
+        }
+        unavailable.inc(unpriced.size());
+        return new Quotes(quotes, unpriced, stale);
+    }
+
+    // a cached quote that may still be served, starting a refresh if it is due for one
+    private Quote cached(String jwt, String symbol, long now) {
+        Entry entry = entries.get(symbol);
+        if (entry == null || now - entry.fetched >= TTL_MS) {
+            return null;
+        }
+        hits.inc();
+        if (now - entry.fetched >= REFRESH_AHEAD_MS && !inFlight.containsKey(symbol)) {
+            refreshes.inc();
+            load(jwt, symbol).whenComplete((quote, failure) -> {
+                if (failure != null) {
+                    logException(failure);
+                }
+            });
+        }
+        return entry.quote;
+    }
+
+    /**
+     * Fetches the quote, unless a call for the symbol is already in flight, in which case that
+     * call's result is shared instead. If the call fails, the cached quote is the result for as
+     * long as it is within QUOTE_CACHE_MAX_STALE_MS of its expiry.
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Entry> load(String jwt, String symbol) {
+        CompletableFuture<Entry> flight = new CompletableFuture<>();
+        CompletableFuture<?> existing = inFlight.putIfAbsent(symbol, flight);
+        if (existing != null) {
+            return (CompletableFuture<Entry>) existing;
+        }
+        loads.inc();
+        call(() -> asyncClient.getStockQuoteAsync(jwt, symbol).toCompletableFuture())
+            .whenComplete((quote, failure) -> {
+                inFlight.remove(symbol, flight);
+                long now = clock.getAsLong();
+                if (failure == null && quote != null) {
+                    flight.complete(put(symbol, quote, now));
+                    return;
+                }
+                Entry stale = entries.get(symbol);
+                if (stale != null && now - stale.fetched < TTL_MS + MAX_STALE_MS) {
+                    staleServed.inc();
+                    flight.complete(stale);
+                } else {
+                    flight.completeExceptionally(failure != null ? failure
+                        : new IllegalStateException("No quote for " + symbol));
+                }
+            });
+        return flight;
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Map<String, Entry>> loadAll(String jwt) {
+        CompletableFuture<Map<String, Entry>> flight = new CompletableFuture<>();
+        CompletableFuture<?> existing = inFlight.putIfAbsent(ALL_QUOTES, flight);
+        if (existing != null) {
+            return (CompletableFuture<Map<String, Entry>>) existing;
+        }
+        loads.inc();
+        call(() -> asyncClient.getAllCachedQuotesAsync(jwt).toCompletableFuture())
+            .whenComplete((quotes, failure) -> {
+                inFlight.remove(ALL_QUOTES, flight);
+                if (failure != null) {
+                    flight.completeExceptionally(failure);
+                    return;
+                }
+                long now = clock.getAsLong();
+                Map<String, Entry> all = new HashMap<>();
+                if (quotes != null) {
+                    for (Quote quote : quotes) {
+                        if (quote != null && quote.getSymbol() != null) {
+                            all.put(quote.getSymbol(), put(quote.getSymbol(), quote, now));
+                        }
+                    }
+                }
+                flight.complete(all);
+            });
+        return flight;
+    }
+
+    // the symbol's quote from whichever completes first with one: the outstanding call for all
+    // quotes, or the symbol's own call
+    private static CompletableFuture<Entry> firstOf(CompletableFuture<Map<String, Entry>> batch, String symbol,
+            CompletableFuture<Entry> single) {
+        CompletableFuture<Entry> first = new CompletableFuture<>();
+        batch.whenComplete((all, failure) -> {
+            if (all != null && all.get(symbol) != null) {
+                first.complete(all.get(symbol));
+            }
+        });
+        single.whenComplete((entry, failure) -> {
+            if (failure != null) {
+                // still priced if the batch has it
+                batch.whenComplete((all, batchFailure) -> {
+                    if (all == null || all.get(symbol) == null) {
+                        first.completeExceptionally(failure);
+                    }
+                });
+            } else {
+                first.complete(entry);
+            }
+        });
+        return first;
+    }
+
+    // starts a call, turning a rejection by a full bulkhead into a failed future
+    private static <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> call) {
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private Entry put(String symbol, Quote quote, long fetched) {
+        Entry entry = new Entry(quote, fetched);
+        entries.put(symbol, entry);
+        if (entries.size() > MAX_SIZE) {
+            evict(fetched);
+        }
+        return entry;
+    }
+
+    // drops expired quotes, then arbitrary ones if the cache is still over its limit
+    private void evict(long now) {
+        entries.values().removeIf(entry -> now - entry.fetched >= TTL_MS);
+        Iterator<String> symbols = entries.keySet().iterator();
+        while (entries.size() > MAX_SIZE && symbols.hasNext()) {
+            symbols.next();
+            symbols.remove();
+        }
+    }
+
+    /**
+     * Waits for the call until the deadline; the call itself carries on, so a late result still
+     * fills the cache for the next lookup.
+     * @return the result, or null if the call failed or didn't finish in time
+     */
+    private static <T> T await(CompletableFuture<T> future, long deadline, String symbol) {
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.warning("No quote for " + symbol + " within the deadline");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logException(e.getCause());
+        }
+        return null;
+    }
+
+    private static void logException(Throwable t) {
+        logger.warning(t.getClass().getName()+": "+t.getMessage());
+
+        //only log the stack trace if the level has been set to at least the specified level
+        if (logger.isLoggable(Level.INFO)) {
+            java.io.StringWriter writer = new java.io.StringWriter();
+            t.printStackTrace(new java.io.PrintWriter(writer));
+            logger.info(writer.toString());
+        }
+    }
+}
@@ -13,6 +13,8 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.client;
 
+import java.util.concurrent.CompletionStage;
+
 import javax.enterprise.context.Dependent;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
@@ -35,4 +37,14 @@ public interface StockQuoteClient {
 	@Path("/{symbol}")
 	@Produces("application/json")
 	public Quote getStockQuote(@HeaderParam("Authorization") String jwt, @PathParam("symbol") String symbol);
+
+	@GET
+	@Path("/")
+	@Produces("application/json")
+	public CompletionStage<Quote[]> getAllCachedQuotesAsync(@HeaderParam("Authorization") String jwt);
+
+	@GET
+	@Path("/{symbol}")
+	@Produces("application/json")
+	public CompletionStage<Quote> getStockQuoteAsync(@HeaderParam("Authorization") String jwt, @PathParam("symbol") String symbol);
 }
@@ -0,0 +1,290 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.demo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.apache.log4j.Logger;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.StockPurchase;
+
+/**
+ * Fans every consumed message out to the open demo sessions. The ingestion thread hands each
+ * message to {@link #publish} once; every session then has its own bounded buffer, drained by
+ * asynchronous sends, so no session holds a thread and a slow client only ever loses its own
+ * messages.
+ *
+ * When a session's buffer is full, DEMO_OVERFLOW_POLICY decides what gives: "drop-oldest" (the
+ * default) discards the oldest unsent message, "coalesce" discards the oldest unsent trade for the
+ * same owner and symbol as the new one, which supersedes it, and the oldest unsent message only
+ * when no buffered trade is for that pair. Until the buffer is full every trade is delivered.
+ *
+ * A session that negotiated no subprotocol gets one JSON message per frame, as the demo UI
+ * expects. One that negotiated {@link #JSON_BATCH_PROTOCOL} or {@link #BINARY_BATCH_PROTOCOL}
+ * instead gets everything buffered within DEMO_BATCH_WINDOW_MS, or while its previous frame was
+ * being sent, as one frame of up to DEMO_BATCH_MAX_MESSAGES messages: a JSON array of the usual
+ * messages, or a binary frame holding the message count (int) followed by each message in
+ * {@link DemoConsumedMessage#encodeBinary()} form.
+ */
+@ApplicationScoped
+public class BroadcastHub {
+
+    public static final String DROP_OLDEST = "drop-oldest";
+    public static final String COALESCE = "coalesce";
+
+    public static final String JSON_BATCH_PROTOCOL = "trades.json-batch.v1";
+    public static final String BINARY_BATCH_PROTOCOL = "trades.binary-batch.v1";
+
+    @Inject
+    @ConfigProperty(name = "DEMO_SESSION_BUFFER_SIZE", defaultValue = "256")
+    private int BUFFER_SIZE;
+
+    @Inject
+    @ConfigProperty(name = "DEMO_OVERFLOW_POLICY", defaultValue = DROP_OLDEST)
+    private String OVERFLOW_POLICY;
+
+    @Inject
+    @ConfigProperty(name = "DEMO_BATCH_WINDOW_MS", defaultValue = "50")
+    private long BATCH_WINDOW_MS;
+
+    @Inject
+    @ConfigProperty(name = "DEMO_BATCH_MAX_MESSAGES", defaultValue = "500")
+    private int BATCH_MAX_MESSAGES;
+
+    @Resource
+    private ManagedScheduledExecutorService scheduler;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong messagesDropped = new AtomicLong();
+
+    private Logger logger = Logger.getLogger(BroadcastHub.class);
+
+    public BroadcastHub() {
+    }
+
+    // for tests, without a container
+    BroadcastHub(int bufferSize, String overflowPolicy, long batchWindowMs, int batchMaxMessages) {
+        BUFFER_SIZE = bufferSize;
+        OVERFLOW_POLICY = overflowPolicy;
+        BATCH_WINDOW_MS = batchWindowMs;
+        BATCH_MAX_MESSAGES = batchMaxMessages;
+    }
+
+    /**
+     * Starts delivering every message published from now on to the session.
+     */
+    public Subscription subscribe(Session session) {
+        Subscription subscription = new Subscription(session, BUFFER_SIZE, COALESCE.equalsIgnoreCase(OVERFLOW_POLICY),
+            session.getNegotiatedSubprotocol());
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+        subscription.clear();
+    }
+
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    public long getMessagesDropped() {
+        return messagesDropped.get();
+    }
+
+    /**
+     * Buffers the message for every subscribed session and starts a send wherever one isn't
+     * already under way. Never blocks.
+     */
+    public void publish(DemoConsumedMessage message) {
+        long id = sequence.incrementAndGet();
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(id, message);
+        }
+    }
+
+    /**
+     * One session's buffer. At most one send is outstanding per session, as the WebSocket API
+     * requires of asynchronous sends; its completion starts the next, which for a batching session
+     * carries everything buffered in the meantime.
+     */
+    public class Subscription implements SendHandler {
+        private final Session session;
+        private final int capacity;
+        private final boolean coalesce;
+        private final boolean batch;
+        private final boolean binary;
+        // keyed by publish sequence, oldest first
+        private final LinkedHashMap<Long, DemoConsumedMessage> buffer = new LinkedHashMap<>();
+        private boolean paused = false;
+        private boolean sending = false;
+        private boolean scheduled = false;
+
+        Subscription(Session session, int capacity, boolean coalesce, String protocol) {
+            this.session = session;
+            this.capacity = Math.max(1, capacity);
+            this.coalesce = coalesce;
+            this.binary = BINARY_BATCH_PROTOCOL.equals(protocol);
+            this.batch = binary || JSON_BATCH_PROTOCOL.equals(protocol);
+        }
+
+        public synchronized void pause() {
+            paused = true;
+            buffer.clear();
+        }
+
+        public synchronized void resume() {
+            paused = false;
+        }
+
+        synchronized void clear() {
+            paused = true;
+            buffer.clear();
+        }
+
+        synchronized void offer(long id, DemoConsumedMessage message) {
+            if (paused) {
+                return;
+            }
+            if (buffer.size() >= capacity) {
+                if (!coalesce || !removeOldestFor(message)) {
+                    Iterator<Long> oldest = buffer.keySet().iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+                messagesDropped.incrementAndGet();
+            }
+            buffer.put(id, message);
+            if (batch && !sending && !scheduled && BATCH_WINDOW_MS > 0) {
+                // hold the first message of an idle session for the window, so the ones right
+                // behind it share its frame
+                try {
+                    scheduler.schedule(this::flush, BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+                    scheduled = true;
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // send it straight away instead
+                }
+            }
+            sendNext();
+        }
+
+        // called holding the lock, only once the buffer is full
+        private boolean removeOldestFor(DemoConsumedMessage message) {
+            String owner = message.getPurchase().getOwner();
+            String symbol = message.getPurchase().getSymbol();
+            Iterator<DemoConsumedMessage> buffered = buffer.values().iterator();
+            while (buffered.hasNext()) {
+                StockPurchase purchase = buffered.next().getPurchase();
+                if (Objects.equals(owner, purchase.getOwner()) && Objects.equals(symbol, purchase.getSymbol())) {
+                    // superseded by the new trade, which is queued as the newest
+                    buffered.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private synchronized void flush() {
+            scheduled = false;
+            sendNext();
+        }
+
+        // called holding the lock
+        private void sendNext() {
+            if (sending || scheduled || buffer.isEmpty()) {
+                return;
+            }
+            if (!session.isOpen()) {
+                buffer.clear();
+                return;
+            }
+            List<DemoConsumedMessage> messages = new ArrayList<>(batch ? Math.min(buffer.size(), BATCH_MAX_MESSAGES) : 1);
+            Iterator<DemoConsumedMessage> next = buffer.values().iterator();
+            while (next.hasNext() && (messages.isEmpty() || batch && messages.size() < BATCH_MAX_MESSAGES)) {
+                messages.add(next.next());
+                next.remove();
+            }
+            sending = true;
+            try {
+                if (binary) {
+                    session.getAsyncRemote().sendBinary(binaryFrame(messages), this);
+                } else if (batch) {
+                    session.getAsyncRemote().sendText(jsonFrame(messages), this);
+                } else {
+                    session.getAsyncRemote().sendText(messages.get(0).encode(), this);
+                }
+            } catch (RuntimeException e) {
+                sending = false;
+                logger.warn(String.format("Unable to send to session %s", session.getId()), e);
+            }
+        }
+
+        @Override
+        public synchronized void onResult(SendResult result) {
+            sending = false;
+            if (!result.isOK()) {
+                logger.warn(String.format("Send to session %s failed", session.getId()), result.getException());
+            }
+            sendNext();
+        }
+    }
+
+    private static String jsonFrame(List<DemoConsumedMessage> messages) {
+        StringBuilder frame = new StringBuilder(messages.size() * 256).append('[');
+        for (DemoConsumedMessage message : messages) {
+            if (frame.length() > 1) {
+                frame.append(',');
+            }
+            frame.append(message.encode());
+        }
+        return frame.append(']').toString();
+    }
+
+    private static ByteBuffer binaryFrame(List<DemoConsumedMessage> messages) {
+        int size = 4;
+        for (DemoConsumedMessage message : messages) {
+            size += message.encodeBinary().length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(size).putInt(messages.size());
+        for (DemoConsumedMessage message : messages) {
+            frame.put(message.encodeBinary());
+        }
+        frame.flip();
+        return frame;
+    }
+}
@@ -14,18 +14,12 @@ package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.demo;
 
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
 
-import javax.annotation.Resource;
-import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.json.Json;
 import javax.json.JsonException;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import javax.websocket.CloseReason;
-import javax.websocket.EncodeException;
 import javax.websocket.EndpointConfig;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
@@ -34,33 +28,29 @@ import javax.websocket.OnOpen;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
-import org.apache.kafka.clients.consumer.ConsumerRecord;
-import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.log4j.Logger;
 
-import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.MongoConnector;
-import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.StockPurchase;
-import com.sun.corba.se.spi.activation._ActivatorImplBase;
-import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.kafka.Consumer;
-
 import javax.inject.Inject;
 
-@ServerEndpoint(value = "/democonsume", encoders = { DemoMessageEncoder.class })
+/**
+ * Streams consumed trades to the demo UI. Sessions don't poll anything themselves: "start"
+ * subscribes the session to the shared {@link BroadcastHub}, which pushes messages to it with
+ * asynchronous sends, and "stop" pauses delivery until the next "start". Clients that can take
+ * several trades per frame ask for one of the hub's batch subprotocols when they connect.
+ */
+@ServerEndpoint(value = "/democonsume", encoders = { DemoMessageEncoder.class },
+    subprotocols = { BroadcastHub.JSON_BATCH_PROTOCOL, BroadcastHub.BINARY_BATCH_PROTOCOL })
 public class DemoConsumeSocket {
 
     private Session currentSession = null;
 
     @Inject
-    private Consumer consumer;
+    private BroadcastHub broadcastHub;
 
-    private MessageController messageController = null;
+    private BroadcastHub.Subscription subscription = null;
 
     private Logger logger = Logger.getLogger(DemoConsumeSocket.class);
 
-    private static MongoConnector MONGO_CONNECTOR;
-    @Resource
-    ManagedExecutorService managedExecutorService;
-
     @OnOpen
     public void onOpen(Session session, EndpointConfig endpointConfig) {
         logger.info(String.format("Socket opened with id %s", session.getId()));
@@ -75,18 +65,19 @@ public class DemoConsumeSocket {
             logger.info(String.format("Message received from session %s with action %s", session.getId(), action));
             switch (action) {
             case "start":
-                if (messageController == null) {
-                    logger.info("Starting message consumption");
-                    messageController = new MessageController();
-                    messageController.start();
+                if (subscription == null) {
+                    logger.info("Starting message updates");
+                    subscription = broadcastHub.subscribe(session);
                 } else {
-                    logger.info("Resuming message consumption");
-                    messageController.resume();
+                    logger.info("Resuming message updates");
+                    subscription.resume();
                 }
                 break;
             case "stop":
-                logger.info("Pausing message consumption");
-                messageController.pause();
+                logger.info("Pausing message updates");
+                if (subscription != null) {
+                    subscription.pause();
+                }
                 break;
             default:
                 logger.warn("Received message with unknown action, expected 'start' or 'stop'.");
@@ -100,11 +91,12 @@ public class DemoConsumeSocket {
     @OnClose
     public void onClose(Session session, CloseReason closeReason) {
         logger.info("Closed websocket");
-        if (messageController != null) {
-            logger.info("Stopping message controller");
-            messageController.stop();
+        if (subscription != null) {
+            logger.info("Stopping message updates");
+            broadcastHub.unsubscribe(subscription);
+            subscription = null;
         }
-        logger.info(String.format("Consumer and client connection for session %s closed.", session.getId()));
+        logger.info(String.format("Client connection for session %s closed.", session.getId()));
     }
 
     @OnError
@@ -118,125 +110,4 @@ public class DemoConsumeSocket {
             logger.error(e);
         }
     }
-    
-    private class MessageController {
-        MessageSender sender = new MessageSender();
-        KafkaConsumer consumer = new KafkaConsumer();
-        BlockingQueue<DemoConsumedMessage> queue = new LinkedBlockingQueue<>();
-        
-        void start() {
-            if(MONGO_CONNECTOR != null) {
-                sender.messageQueue = queue;
-                consumer.messageQueue = queue;
-                Thread thread = new Thread(sender);
-                thread.start();
-                thread = new Thread(consumer);
-                thread.start();
-            }
-            else {
-                logger.debug("Mongo not initialized properly");
-                stop();
-            }
-        }
-        
-        void pause() {
-            sender.sendMessages = false;
-        }
-        
-        void resume() {
-            sender.sendMessages = true;
-        }
-        
-        void stop() {
-            consumer.exit = true;
-            sender.exit = true;
-        }
-    }
-
-    private class MessageSender implements Runnable {
-        volatile boolean exit = false;
-        volatile boolean sendMessages = true;
-        BlockingQueue<DemoConsumedMessage> messageQueue;
-
-        @Override
-        public void run() {
-            try {
-                while (!exit) {
-                    int messagesSent = 0;
-                    while (!exit && sendMessages) {
-                        logger.info("Sending / waiting for messages, queue depth : " + messageQueue.size());
-                        try {
-                            DemoConsumedMessage message = messageQueue.poll(1, TimeUnit.SECONDS);
-                            if (message != null) {
-                                logger.info(String.format("Updating session %s with new message %s",
-                                        currentSession.getId(), message.encode()));
-                                currentSession.getBasicRemote().sendObject(message);
-                                messagesSent++;
-                            }
-                        } catch (IOException | EncodeException e) {
-                            onError(e);
-                        } 
-                    }
-                    sendMessages = false;
-                    Thread.sleep(1000);
-                    logger.info(String.format("Paused consumer for session %s.", currentSession.getId()));
-                }
-            }catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-
-        }
-
-    }
-
-    private class KafkaConsumer implements Runnable {
-        volatile boolean exit = false;
-        BlockingQueue<DemoConsumedMessage> messageQueue;
-
-        public KafkaConsumer(){
-            super();
-            try {
-                MONGO_CONNECTOR = new MongoConnector();
-            }
-            catch(NullPointerException e) {
-                logger.debug(e.getMessage());
-                MONGO_CONNECTOR = null;
-            }  
-            catch(IllegalArgumentException e) {
-                logger.debug(e.getMessage());
-
-                MONGO_CONNECTOR = null;
-            }
-            catch(Exception e) {
-                logger.debug(e.getMessage());
-                MONGO_CONNECTOR = null;
-            }
-        }
-        @Override
-        public void run() {
-            while (!exit) {
-                logger.info("Consuming messages from Kafka");
-                ConsumerRecords<String, String> records = consumer.consume();
-                logger.info("Processing records: " + records);
-                for (ConsumerRecord<String, String> record : records) {
-                    DemoConsumedMessage message = new DemoConsumedMessage(record.topic(), record.partition(),
-                            record.offset(), record.value(), record.timestamp());
-                    
-                    StockPurchase sp = new StockPurchase(message.getValue());
-                    logger.info("Inserting stock purchase history to Mongo DB");
-                    MONGO_CONNECTOR.insertStockPurchase(sp, message.getTopic());
-                    try {
-                        logger.info(String.format("Consumed message %s",message.encode()));
-                        while (!exit && !messageQueue.offer(message, 1, TimeUnit.SECONDS));
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
-            }
-            logger.info("Closing Kafka consumer");
-            consumer.shutdown();
-            logger.info("Kafka consumer closed");
-        }
-
-    }
 }
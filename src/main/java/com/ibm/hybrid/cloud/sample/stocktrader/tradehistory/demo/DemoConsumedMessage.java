@@ -13,22 +13,32 @@
 
 package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.demo;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import javax.json.Json;
 
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.StockPurchase;
+
 public class DemoConsumedMessage implements Serializable{
 
     private String topic;
     private int partition;
     private long offset;
-    private String value;
+    private StockPurchase purchase;
     private long timestamp;
 
-    public DemoConsumedMessage(String topic, int partition, long offset, String value, long timestamp) {
+    // every session is sent the same message, so each encoding is built once and then shared
+    private transient volatile String encoded;
+    private transient volatile byte[] binary;
+
+    public DemoConsumedMessage(String topic, int partition, long offset, StockPurchase purchase, long timestamp) {
         this.topic = topic;
         this.partition = partition;
         this.offset = offset;
-        this.value = value;
+        this.purchase = purchase;
         this.timestamp = timestamp;
     }
 
@@ -44,8 +54,15 @@ public class DemoConsumedMessage implements Serializable{
         return offset;
     }
 
+    public StockPurchase getPurchase() {
+        return purchase;
+    }
+
+    /**
+     * @return the purchase as JSON; only encoded when a message is actually sent to a client
+     */
     public String getValue() {
-        return value;
+        return purchase.encode();
     }
 
     public long getTimestamp() {
@@ -58,12 +75,47 @@ public class DemoConsumedMessage implements Serializable{
     }
 
     public String encode() {
-        return Json.createObjectBuilder()
-            .add("topic", topic)
-            .add("partition", partition)
-            .add("offset", offset)
-            .add("value", value)
-            .add("timestamp", timestamp)
-            .build().toString();
+        String json = encoded;
+        if (json == null) {
+            json = Json.createObjectBuilder()
+                .add("topic", topic)
+                .add("partition", partition)
+                .add("offset", offset)
+                .add("value", purchase.encode())
+                .add("timestamp", timestamp)
+                .build().toString();
+            encoded = json;
+        }
+        return json;
+    }
+
+    /**
+     * The message in the compact binary form: partition (int), offset (long), timestamp (long),
+     * shares (int), price (double), commission (double), then topic, id, owner, symbol and when as
+     * modified UTF-8 strings, all big-endian as written by DataOutputStream.
+     */
+    public byte[] encodeBinary() {
+        byte[] bytes = binary;
+        if (bytes == null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+            try (DataOutputStream out = new DataOutputStream(buffer)) {
+                out.writeInt(partition);
+                out.writeLong(offset);
+                out.writeLong(timestamp);
+                out.writeInt(purchase.getShares());
+                out.writeDouble(purchase.getPrice());
+                out.writeDouble(purchase.getCommission());
+                out.writeUTF(topic);
+                out.writeUTF(purchase.getId());
+                out.writeUTF(purchase.getOwner());
+                out.writeUTF(purchase.getSymbol());
+                out.writeUTF(purchase.getWhen());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            bytes = buffer.toByteArray();
+            binary = bytes;
+        }
+        return bytes;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,533 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.ingest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.concurrent.ManagedExecutors;
+import javax.enterprise.concurrent.ManagedTask;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.json.JSONObject;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.demo.BroadcastHub;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.demo.DemoConsumedMessage;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.kafka.Consumer;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.MongoConnector;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.StockPurchase;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.StockPurchaseBatch;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.TradeSource;
+import com.mongodb.MongoException;
+import com.mongodb.MongoInterruptedException;
+
+/**
+ * Always-on Kafka to Mongo ingestion. Starts when the application is deployed, runs on its own
+ * managed executor and owns the Kafka consumer. Every consumed message is also handed once to the
+ * {@link BroadcastHub}, which fans it out to the demo WebSocket sessions without affecting ingest.
+ *
+ * A single thread polls Kafka. Each batch is split by owner across INGEST_WORKERS writers so that
+ * one owner's trades are always written by the same writer, in the order they were consumed.
+ * Offsets are only committed once every writer has finished its share of the batch, and the
+ * pending batch is flushed before partitions are revoked by a rebalance.
+ *
+ * Ingestion only stops when the application does. If seeding or consuming fails, the consumer is
+ * rewound to its last committed offsets and tried again after a backoff that doubles from
+ * INGEST_RETRY_INITIAL_MS up to INGEST_RETRY_MAX_MS; meanwhile {@link #getState()} reports it as
+ * retrying, with the failure, for /ingest/status and the health check.
+ *
+ * Every INGEST_REPORT_INTERVAL_MS the polling thread reports to the rollup marks that it is
+ * alive, and looks for a rebuild of the rollups claimed by any pod. While one is claimed it stops
+ * consuming, and reports once it has written everything it consumed before, so that the pod
+ * rebuilding knows when no consumer in the cluster is still adding to the rollups.
+ */
+@ApplicationScoped
+public class IngestionService {
+
+    @Inject
+    private Consumer consumer;
+
+    @Resource(lookup = "concurrent/ingestExecutor")
+    private ManagedExecutorService executor;
+
+    @Inject
+    @ConfigProperty(name = "INGEST_SHUTDOWN_TIMEOUT_MS", defaultValue = "10000")
+    private long SHUTDOWN_TIMEOUT_MS;
+
+    @Inject
+    @ConfigProperty(name = "INGEST_WORKERS", defaultValue = "4")
+    private int WORKERS;
+
+    @Inject
+    @ConfigProperty(name = "INGEST_RETRY_INITIAL_MS", defaultValue = "1000")
+    private long RETRY_INITIAL_MS;
+
+    @Inject
+    @ConfigProperty(name = "INGEST_RETRY_MAX_MS", defaultValue = "60000")
+    private long RETRY_MAX_MS;
+
+    @Inject
+    @ConfigProperty(name = "INGEST_REPORT_INTERVAL_MS", defaultValue = "1000")
+    private long REPORT_INTERVAL_MS;
+
+    // a consumer not heard from for longer is taken to be gone, and not waited for by a rebuild
+    @Inject
+    @ConfigProperty(name = "INGEST_CONSUMER_STALE_MS", defaultValue = "30000")
+    private long CONSUMER_STALE_MS;
+
+    @Inject
+    @ConfigProperty(name = "INGEST_REBUILD_PAUSE_TIMEOUT_MS", defaultValue = "30000")
+    private long REBUILD_PAUSE_TIMEOUT_MS;
+
+    public enum State { STARTING, CONSUMING, RETRYING, STOPPED }
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    // counted down by shutdown, to cut short a backoff
+    private final CountDownLatch stopping = new CountDownLatch(1);
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong tradesWritten = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+
+    @Inject
+    @ConfigProperty(name = "INGEST_SEED_STALE_MS", defaultValue = "600000")
+    private long SEED_STALE_MS;
+
+    private volatile boolean running = false;
+    private volatile State state = State.STOPPED;
+    private volatile String lastFailure;
+    private volatile boolean pauseRequested = false;
+    // set by the polling thread once it has written everything consumed and stopped consuming
+    private volatile boolean pauseAcknowledged = false;
+    // set while records from a failed write are still to be consumed again
+    private boolean rewound = false;
+    // only touched by the polling thread
+    private boolean recentTradesSeeded = false;
+    private long retryDelay;
+    // the rebuild claimed when last looked for, if any
+    private ObjectId rebuildClaim;
+
+    // names this consumer in the rollup marks
+    private final String consumerId = new ObjectId().toHexString();
+
+    @Inject
+    private MongoConnector mongoConnector;
+
+    @Inject
+    private BroadcastHub broadcastHub;
+
+    // only touched by the polling thread, including from within rebalance callbacks
+    private StockPurchaseBatch pending;
+
+    private Logger logger = Logger.getLogger(IngestionService.class);
+
+    void onStartup(@Observes @Initialized(ApplicationScoped.class) Object context) {
+        start();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        // index builds and the migration can take minutes on a large collection, so they run under
+        // the long-running policy rather than holding one of the batch writers' threads
+        executor.submit(longRunning(() -> {
+            try {
+                mongoConnector.ensureIndexes();
+            } catch (Exception e) {
+                logger.error("Failed to ensure the trade indexes, they will be checked again on the next start", e);
+            }
+            try {
+                mongoConnector.migrateWhenToDates();
+            } catch (Exception e) {
+                logger.error("Trade timestamp migration failed, it will be retried on the next start", e);
+            }
+        }));
+        running = true;
+        state = State.STARTING;
+        executor.submit(longRunning(this::run));
+        logger.info("Trade ingestion started");
+    }
+
+    private static Runnable longRunning(Runnable task) {
+        return ManagedExecutors.managedTask(task, Collections.singletonMap(ManagedTask.LONGRUNNING_HINT, "true"), null);
+    }
+
+    /**
+     * Stops polling, writes whatever has already been consumed and commits it before the
+     * consumer is closed.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        logger.info("Draining trade ingestion");
+        running = false;
+        stopping.countDown();
+        consumer.wakeup();
+        try {
+            if (!stopped.await(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logger.warn(String.format("Trade ingestion did not drain within %d ms", SHUTDOWN_TIMEOUT_MS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void pause() {
+        pauseRequested = true;
+    }
+
+    public void resume() {
+        pauseRequested = false;
+    }
+
+    /**
+     * Regenerates the positions rollup from the trade log. The rebuild is first claimed in the
+     * rollup marks, which pauses the consumers of every pod, and only runs once each consumer
+     * seen within INGEST_CONSUMER_STALE_MS has reported writing the batch it held, so that no
+     * increments are applied anywhere while the positions collection is being replaced. The
+     * claim is released afterwards, and the consumers resume. A claim left by a pod that died
+     * while rebuilding is taken over after INGEST_SEED_STALE_MS, as a seeding claim is.
+     */
+    public JSONObject rebuildPositions() {
+        if (mongoConnector == null) {
+            throw new IllegalStateException("Mongo not initialized properly");
+        }
+        ObjectId claim = mongoConnector.claimRebuild(SEED_STALE_MS);
+        if (claim == null) {
+            throw new IllegalStateException("The positions are already being rebuilt");
+        }
+        try {
+            long deadline = System.currentTimeMillis() + REBUILD_PAUSE_TIMEOUT_MS;
+            List<String> consuming = mongoConnector.getConsumersNotPausedFor(claim, CONSUMER_STALE_MS);
+            while (!consuming.isEmpty()) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new IllegalStateException(String.format(
+                        "Consumers %s did not pause within %d ms, positions not rebuilt", consuming, REBUILD_PAUSE_TIMEOUT_MS));
+                }
+                try {
+                    Thread.sleep(REPORT_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for the consumers to pause", e);
+                }
+                consuming = mongoConnector.getConsumersNotPausedFor(claim, CONSUMER_STALE_MS);
+            }
+            logger.info("Every consumer has paused, rebuilding positions");
+            return mongoConnector.rebuildPositions();
+        } finally {
+            mongoConnector.releaseRebuild(claim);
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return STARTING until the first poll, CONSUMING while polling, paused or not, RETRYING
+     *         after a failure until the next poll, and STOPPED once the consumer is closed
+     */
+    public State getState() {
+        return state;
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    // the last failure ingestion recovered or is recovering from, if any
+    public String getLastFailure() {
+        return lastFailure;
+    }
+
+    public boolean isPaused() {
+        return pauseRequested;
+    }
+
+    public boolean isPauseAcknowledged() {
+        return pauseAcknowledged;
+    }
+
+    public long getTradesWritten() {
+        return tradesWritten.get();
+    }
+
+    public long getBatchesWritten() {
+        return batchesWritten.get();
+    }
+
+    public long getMessagesDropped() {
+        return broadcastHub.getMessagesDropped();
+    }
+
+    public int getObserverCount() {
+        return broadcastHub.getSubscriberCount();
+    }
+
+    /**
+     * Consumes until shut down, starting over after any failure once the backoff has passed.
+     */
+    private void run() {
+        StockPurchaseBatch batch = new StockPurchaseBatch(consumer.getBatchSize(), consumer.getBatchLingerMillis());
+        pending = batch;
+        retryDelay = RETRY_INITIAL_MS;
+        consumer.setRebalanceListener(new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                // commit what we hold for these partitions before another member takes them over
+                flush(pending);
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                if (pauseRequested || rebuildClaim != null) {
+                    consumer.pause();
+                }
+            }
+        });
+        boolean failed = false;
+        try {
+            while (running) {
+                try {
+                    if (failed) {
+                        // whatever was consumed but not written is consumed again
+                        batch.clear();
+                        consumer.rewind();
+                    }
+                    consume(batch);
+                    failed = false;
+                } catch (RuntimeException e) {
+                    failed = true;
+                    pauseAcknowledged = false;
+                    failures.incrementAndGet();
+                    lastFailure = e.toString();
+                    state = State.RETRYING;
+                    logger.error(String.format("Trade ingestion failed, retrying in %d ms", retryDelay), e);
+                    backoff();
+                }
+            }
+            flush(batch);
+        } catch (RuntimeException e) {
+            logger.error("Failed to write the last consumed trades before stopping", e);
+        } finally {
+            running = false;
+            state = State.STOPPED;
+            try {
+                mongoConnector.removeConsumer(consumerId);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to remove this consumer from the rollup marks", e);
+            }
+            logger.info("Closing Kafka consumer");
+            consumer.shutdown();
+            stopped.countDown();
+        }
+    }
+
+    private void backoff() {
+        try {
+            stopping.await(retryDelay, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+        retryDelay = Math.min(retryDelay * 2, RETRY_MAX_MS);
+    }
+
+    // polls until shut down, after seeding what has not been seeded yet
+    private void consume(StockPurchaseBatch batch) {
+        if (!recentTradesSeeded) {
+            mongoConnector.seedRecentTrades();
+            recentTradesSeeded = true;
+        }
+        if (!seedPositions()) {
+            return;
+        }
+        boolean consumerPaused = false;
+        // the rebuild this consumer has paused for, with nothing left to write
+        ObjectId pausedFor = null;
+        long reported = 0;
+        while (running) {
+            long now = System.currentTimeMillis();
+            if (now - reported >= REPORT_INTERVAL_MS) {
+                rebuildClaim = mongoConnector.getRebuildClaim();
+                mongoConnector.reportConsumer(consumerId, rebuildClaim != null && rebuildClaim.equals(pausedFor) ? pausedFor : null);
+                reported = now;
+            }
+            // records from a failed write are consumed again before a local pause takes effect,
+            // but not before a rebuild, as they could not be counted while it runs
+            boolean pause = rebuildClaim != null || (pauseRequested && !rewound);
+            if (pause != consumerPaused) {
+                consumerPaused = pause;
+                logger.info(consumerPaused ? "Pausing trade ingestion" : "Resuming trade ingestion");
+            }
+            if (consumerPaused) {
+                // reapplied every poll so partitions assigned by a rebalance stay paused too
+                consumer.pause();
+            } else {
+                consumer.resume();
+            }
+            ConsumerRecords<String, StockPurchase> records;
+            try {
+                records = consumer.consume(batch.remainingLinger());
+            } catch (WakeupException e) {
+                continue;
+            }
+            for (ConsumerRecord<String, StockPurchase> record : records) {
+                if (record.value() == null) {
+                    logger.warn(String.format("Skipping malformed trade at %s-%d offset %d",
+                        record.topic(), record.partition(), record.offset()));
+                    continue;
+                }
+                TradeSource source = new TradeSource(record.topic(), record.partition(), record.offset(), record.timestamp());
+                if (!source.hasObjectId()) {
+                    logger.error(String.format("Skipping trade at %s-%d offset %d, beyond the partitions and offsets a trade id can hold",
+                        record.topic(), record.partition(), record.offset()));
+                    continue;
+                }
+                batch.add(record.value(), source);
+                publish(record);
+            }
+            if (batch.isReady()) {
+                flush(batch);
+            }
+            pauseAcknowledged = consumerPaused && batch.isEmpty();
+            pausedFor = pauseAcknowledged ? rebuildClaim : null;
+            if (state != State.CONSUMING) {
+                state = State.CONSUMING;
+                retryDelay = RETRY_INITIAL_MS;
+            }
+        }
+    }
+
+    /**
+     * Builds the rollups from the trade log before the first poll if they have never been built,
+     * or waits while another process builds them, so that no trades are counted in rollups that
+     * are about to be replaced.
+     * @return false if shut down while waiting
+     */
+    private boolean seedPositions() {
+        boolean waiting = false;
+        while (running) {
+            try {
+                if (mongoConnector.seedPositions(SEED_STALE_MS)) {
+                    return true;
+                }
+                if (!waiting) {
+                    logger.info("Waiting for another instance to seed the position rollups");
+                    waiting = true;
+                }
+            } catch (MongoException e) {
+                logger.error("Failed to seed the position rollups, retrying", e);
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void flush(StockPurchaseBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            logger.debug(String.format("Inserting %d stock purchases to Mongo DB", batch.size()));
+            write(batch);
+            batchesWritten.incrementAndGet();
+            rewound = false;
+            consumer.commit();
+        } catch (MongoException e) {
+            // trades that were stored before the failure are skipped when the records come back
+            logger.error(String.format("Failed to write %d stock purchases, rewinding to last committed offsets", batch.size()), e);
+            consumer.rewind();
+            rewound = true;
+        } catch (WakeupException e) {
+            // shutdown was requested mid-commit; the wakeup has been consumed so retry once
+            consumer.commit();
+        } catch (KafkaException e) {
+            logger.error("Failed to commit offsets, records may be redelivered", e);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Writes the batch across the worker pool and waits for every worker, even when one fails,
+     * so that nothing is still being written if the consumer has to be rewound. Each trade's _id
+     * is derived from its record, so when one worker fails and the whole batch is redelivered, the
+     * trades the other workers already wrote are recognized and skipped rather than stored twice.
+     */
+    private void write(StockPurchaseBatch batch) {
+        if (WORKERS <= 1 || batch.size() < WORKERS) {
+            tradesWritten.addAndGet(mongoConnector.insertStockPurchases(batch));
+            return;
+        }
+        List<Future<Integer>> results = new ArrayList<>(WORKERS);
+        for (StockPurchaseBatch part : batch.partitionByOwner(WORKERS)) {
+            if (!part.isEmpty()) {
+                results.add(executor.submit(() -> mongoConnector.insertStockPurchases(part)));
+            }
+        }
+        MongoException failure = null;
+        for (Future<Integer> result : results) {
+            try {
+                tradesWritten.addAndGet(result.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof MongoException ? (MongoException) e.getCause()
+                        : new MongoException("Trade writer failed", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MongoInterruptedException("Interrupted waiting for trade writers", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void publish(ConsumerRecord<String, StockPurchase> record) {
+        if (!broadcastHub.hasSubscribers()) {
+            return;
+        }
+        broadcastHub.publish(new DemoConsumedMessage(record.topic(), record.partition(),
+            record.offset(), record.value(), record.timestamp()));
+    }
+}
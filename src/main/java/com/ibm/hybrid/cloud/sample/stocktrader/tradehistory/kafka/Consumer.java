@@ -13,13 +13,17 @@
 package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.kafka;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Properties;
 
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.CommonClientConfigs;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.config.SaslConfigs;
 import org.apache.kafka.common.config.SslConfigs;
@@ -28,6 +32,8 @@ import org.apache.log4j.Logger;
 
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.StockPurchase;
+
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
@@ -62,7 +68,17 @@ public class Consumer {
     @ConfigProperty(name = "CONSUMER_GROUP_ID", defaultValue = APP_NAME)
     private String CONSUMER_GROUP_ID;
 
-    private KafkaConsumer<String, String> kafkaConsumer=null;
+    @Inject
+    @ConfigProperty(name = "TRADE_BATCH_SIZE", defaultValue = "500")
+    private int BATCH_SIZE;
+
+    @Inject
+    @ConfigProperty(name = "TRADE_BATCH_LINGER_MS", defaultValue = "100")
+    private long BATCH_LINGER_MS;
+
+    private KafkaConsumer<String, StockPurchase> kafkaConsumer=null;
+
+    private volatile ConsumerRebalanceListener rebalanceListener = null;
 
     private Logger logger = Logger.getLogger(Consumer.class);
 
@@ -77,17 +93,46 @@ public class Consumer {
         String topic = TOPIC_ENV_KEY.replace("\"", "");
 
         kafkaConsumer = createConsumer(bootstrapServerAddress);
-        kafkaConsumer.subscribe(Arrays.asList(topic));
+        kafkaConsumer.subscribe(Arrays.asList(topic), new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                logger.info(String.format("Partitions revoked: %s", partitions));
+                ConsumerRebalanceListener listener = rebalanceListener;
+                if (listener != null) {
+                    listener.onPartitionsRevoked(partitions);
+                }
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+                logger.info(String.format("Partitions assigned: %s", partitions));
+                ConsumerRebalanceListener listener = rebalanceListener;
+                if (listener != null) {
+                    listener.onPartitionsAssigned(partitions);
+                }
+            }
+        });
     }
 
-    private KafkaConsumer<String, String> createConsumer(String brokerList) {
+    /**
+     * Registers a listener that is called from within {@link #consume(long)} on the polling
+     * thread whenever partitions are revoked or assigned.
+     */
+    public void setRebalanceListener(ConsumerRebalanceListener listener) {
+        rebalanceListener = listener;
+    }
+
+    private KafkaConsumer<String, StockPurchase> createConsumer(String brokerList) {
         Properties properties = new Properties();
         properties.put(CommonClientConfigs.BOOTSTRAP_SERVERS_CONFIG, brokerList);
         properties.put(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG, "SASL_SSL");
         properties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StockPurchaseDeserializer.class);
         properties.put(ConsumerConfig.GROUP_ID_CONFIG, CONSUMER_GROUP_ID);
         properties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        // offsets are committed explicitly once a batch has been written to Mongo
+        properties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        properties.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, BATCH_SIZE);
         properties.put(SslConfigs.SSL_PROTOCOL_CONFIG, "TLSv1.2");
         properties.put(SslConfigs.SSL_TRUSTSTORE_LOCATION_CONFIG, KEYSTORE);
         properties.put(SslConfigs.SSL_TRUSTSTORE_PASSWORD_CONFIG, "password");
@@ -96,7 +141,7 @@ public class Consumer {
             + USERNAME + "\" password=" + API_KEY + ";";
         properties.put(SaslConfigs.SASL_JAAS_CONFIG, saslJaasConfig);
 
-        KafkaConsumer<String, String> kafkaConsumer = null;
+        KafkaConsumer<String, StockPurchase> kafkaConsumer = null;
 
         try {
             kafkaConsumer = new KafkaConsumer<>(properties);
@@ -108,11 +153,66 @@ public class Consumer {
         return kafkaConsumer;
     }
 
-    public ConsumerRecords<String, String> consume() {
-        ConsumerRecords<String, String> records = kafkaConsumer.poll(POLL_DURATION);
+    public ConsumerRecords<String, StockPurchase> consume() {
+        return consume(POLL_DURATION);
+    }
+
+    public ConsumerRecords<String, StockPurchase> consume(long pollDuration) {
+        ConsumerRecords<String, StockPurchase> records = kafkaConsumer.poll(Math.min(pollDuration, POLL_DURATION));
         return records;
     }
 
+    /**
+     * Commits the offsets returned by the last poll. Only call this once every record
+     * consumed so far has been durably written.
+     */
+    public void commit() {
+        kafkaConsumer.commitSync();
+    }
+
+    /**
+     * Moves every assigned partition back to its last committed offset so that records
+     * which could not be written are consumed again.
+     */
+    public void rewind() {
+        for (TopicPartition partition : kafkaConsumer.assignment()) {
+            OffsetAndMetadata committed = kafkaConsumer.committed(partition);
+            if (committed != null) {
+                kafkaConsumer.seek(partition, committed.offset());
+            } else {
+                kafkaConsumer.seekToBeginning(Arrays.asList(partition));
+            }
+        }
+        logger.info(String.format("Rewound consumer %s to last committed offsets", CONSUMER_GROUP_ID));
+    }
+
+    /**
+     * Stops fetching from every currently assigned partition while keeping group membership.
+     */
+    public void pause() {
+        kafkaConsumer.pause(kafkaConsumer.assignment());
+    }
+
+    public void resume() {
+        kafkaConsumer.resume(kafkaConsumer.paused());
+    }
+
+    /**
+     * Aborts a blocking poll from another thread. This is the only method that is safe to
+     * call while another thread is consuming.
+     */
+    public void wakeup() {
+        kafkaConsumer.wakeup();
+    }
+
+    public int getBatchSize() {
+        return BATCH_SIZE;
+    }
+
+    public long getBatchLingerMillis() {
+        return BATCH_LINGER_MS;
+    }
+
     public boolean isHealthy() {
         return kafkaConsumer != null;
     }
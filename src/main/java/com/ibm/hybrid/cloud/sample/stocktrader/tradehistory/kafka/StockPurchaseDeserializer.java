@@ -0,0 +1,160 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.kafka;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+import javax.json.stream.JsonParserFactory;
+
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.log4j.Logger;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.StockPurchase;
+
+/**
+ * Reads a StockPurchase straight from the record bytes with a streaming JSON parser, without
+ * building a String of the whole payload or an intermediate object tree. Owner and symbol values
+ * repeat heavily, so they are deduplicated and the same String instances are shared across records.
+ *
+ * Malformed records deserialize to null rather than throwing, because a deserialization error
+ * would leave the consumer stuck on the same offset.
+ */
+public class StockPurchaseDeserializer implements Deserializer<StockPurchase> {
+
+    private static final JsonParserFactory PARSER_FACTORY = Json.createParserFactory(null);
+    private static final int MAX_CACHED_STRINGS = 10000;
+
+    private static final int SHARES = 1, PRICE = 2, COMMISSION = 4;
+    private static final int ALL_NUMBERS = SHARES | PRICE | COMMISSION;
+
+    // a deserializer instance is only ever used by the thread polling its consumer
+    private final Map<String, String> strings = new HashMap<>();
+
+    private Logger logger = Logger.getLogger(StockPurchaseDeserializer.class);
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {}
+
+    @Override
+    public StockPurchase deserialize(String topic, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        String id = null, owner = null, symbol = null, when = null;
+        int shares = 0;
+        double price = 0, commission = 0;
+        int numbersSeen = 0;
+
+        try (JsonParser parser = PARSER_FACTORY.createParser(new ByteArrayInputStream(data), StandardCharsets.UTF_8)) {
+            if (!parser.hasNext() || parser.next() != Event.START_OBJECT) {
+                throw new JsonException("expected a JSON object");
+            }
+            String field = null;
+            Event event;
+            while ((event = parser.next()) != Event.END_OBJECT) {
+                switch (event) {
+                case KEY_NAME:
+                    field = parser.getString();
+                    continue;
+                case START_OBJECT:
+                    parser.skipObject();
+                    continue;
+                case START_ARRAY:
+                    parser.skipArray();
+                    continue;
+                default:
+                    break;
+                }
+                switch (field) {
+                case "id":
+                    id = text(parser, event);
+                    break;
+                case "owner":
+                    owner = shared(text(parser, event));
+                    break;
+                case "symbol":
+                    symbol = shared(text(parser, event));
+                    break;
+                case "when":
+                    when = text(parser, event);
+                    break;
+                case "shares":
+                    shares = (int) number(parser, event);
+                    numbersSeen |= SHARES;
+                    break;
+                case "price":
+                    price = number(parser, event);
+                    numbersSeen |= PRICE;
+                    break;
+                case "commission":
+                    commission = number(parser, event);
+                    numbersSeen |= COMMISSION;
+                    break;
+                default:
+                    break;
+                }
+            }
+        } catch (JsonException | IllegalStateException | NoSuchElementException | NumberFormatException e) {
+            logger.warn(String.format("Unable to parse stock purchase from %s: %s", topic, e.getMessage()));
+            return null;
+        }
+
+        if (id == null || owner == null || symbol == null || when == null || numbersSeen != ALL_NUMBERS) {
+            logger.warn(String.format("Stock purchase from %s is missing required fields", topic));
+            return null;
+        }
+        return new StockPurchase(id, owner, symbol, shares, price, when, commission);
+    }
+
+    @Override
+    public void close() {
+        strings.clear();
+    }
+
+    private String text(JsonParser parser, Event event) {
+        if (event != Event.VALUE_STRING) {
+            throw new JsonException("expected a string but found " + event);
+        }
+        return parser.getString();
+    }
+
+    private double number(JsonParser parser, Event event) {
+        if (event == Event.VALUE_NUMBER) {
+            return parser.isIntegralNumber() ? parser.getLong() : parser.getBigDecimal().doubleValue();
+        }
+        if (event == Event.VALUE_STRING) {
+            return Double.parseDouble(parser.getString());
+        }
+        throw new JsonException("expected a number but found " + event);
+    }
+
+    private String shared(String value) {
+        String cached = strings.get(value);
+        if (cached != null) {
+            return cached;
+        }
+        if (strings.size() >= MAX_CACHED_STRINGS) {
+            strings.clear();
+        }
+        strings.put(value, value);
+        return value;
+    }
+}
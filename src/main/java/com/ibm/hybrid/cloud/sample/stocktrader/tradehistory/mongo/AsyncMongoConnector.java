@@ -0,0 +1,142 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Serves the position, total and equity reads off the request thread. Each read runs on the shared
+ * MongoClient from {@link MongoClientProducer} in the concurrent/mongoExecutor pool and every call
+ * returns a future at once, so HTTP threads are not held while Mongo answers, or while it fails
+ * over. The pool is bounded and rejects reads once its queue is full, so a slow Mongo fails them
+ * fast instead of tying up every thread. Results are shaped exactly as the {@link MongoConnector}
+ * methods of the same name shape them. Reads are made as TRADE_AGGREGATES_* configures, and never
+ * older than the owner's version given, which the response they serve is tagged with.
+ */
+@ApplicationScoped
+public class AsyncMongoConnector {
+
+    private MongoClient mongoClient;
+    private MongoCollection<Document> positionsCollection;
+    private MongoCollection<Document> ownerTotalsCollection;
+
+    @Resource(lookup = "concurrent/mongoExecutor")
+    private ManagedExecutorService executor;
+
+    @Inject
+    private MongoConnector mConnector;
+
+    // only for the proxy CDI puts in front of the application scoped instance
+    protected AsyncMongoConnector() {
+    }
+
+    @Inject
+    public AsyncMongoConnector(MongoClient mongoClient, @ConfigProperty(name = "MONGO_DATABASE") String mongoDatabase,
+            MongoReadSettings reads) {
+        this.mongoClient = mongoClient;
+        MongoDatabase database = mongoClient.getDatabase(mongoDatabase);
+        positionsCollection = reads.getAggregates().apply(database.getCollection(
+            MongoConnector.TRADE_COLLECTION_NAME + MongoConnector.POSITIONS_SUFFIX));
+        ownerTotalsCollection = reads.getAggregates().apply(database.getCollection(
+            MongoConnector.TRADE_COLLECTION_NAME + MongoConnector.OWNER_TOTALS_SUFFIX));
+    }
+
+    // for tests, without a container
+    AsyncMongoConnector(MongoClient mongoClient, String mongoDatabase, MongoReadSettings reads, ManagedExecutorService executor) {
+        this(mongoClient, mongoDatabase, reads);
+        this.executor = executor;
+    }
+
+    /**
+     * @param version - the owner's version the response is tagged with, or null
+     */
+    public CompletableFuture<JSONObject> getSymbolShares(String ownerName, String symbol, OwnerVersion version) {
+        return getPositions(Filters.and(Filters.eq("owner", ownerName), Filters.eq("symbol", symbol)), "shares", version)
+            .thenApply(docs -> MongoConnector.docsToJsonObject(docs, "shares"));
+    }
+
+    public CompletableFuture<JSONObject> getPortfolioSharesJSON(String ownerName, OwnerVersion version) {
+        return getPositions(Filters.eq("owner", ownerName), "shares", version)
+            .thenApply(docs -> MongoConnector.docsToJsonObject(docs, "shares"));
+    }
+
+    public CompletableFuture<Double> getTotalNotional(String ownerName, OwnerVersion version) {
+        return getOwnerTotals(ownerName, version)
+            .thenApply(totals -> totals == null ? null : MongoConnector.number(totals, "notional"));
+    }
+
+    public CompletableFuture<JSONObject> getTradeSummary(String ownerName, OwnerVersion version) {
+        return getOwnerTotals(ownerName, version)
+            .thenApply(totals -> MongoConnector.tradeSummary(ownerName, totals));
+    }
+
+    public CompletableFuture<String> getROI(String ownerName, Double equity, OwnerVersion version) {
+        return getOwnerTotals(ownerName, version)
+            .thenApply(totals -> MongoConnector.roi(totals, equity));
+    }
+
+    /**
+     * Values the owner's positions as {@link MongoConnector#getTotalEquity} does, on a pool thread,
+     * which waits no longer than the quote deadline for the quotes it fetches on concurrent/quoteExecutor.
+     * @param jwt - the caller's Authorization header, read on the request thread
+     */
+    public CompletableFuture<JSONObject> getTotalEquity(String ownerName, String jwt) {
+        return read(null, session -> mConnector.getTotalEquity(ownerName, jwt));
+    }
+
+    private CompletableFuture<List<Document>> getPositions(Bson filter, String field, OwnerVersion version) {
+        return read(version, session -> CausalReads.find(positionsCollection, session, filter)
+            .map(position -> MongoConnector.positionValue(position, field))
+            .into(new ArrayList<>()));
+    }
+
+    private CompletableFuture<Document> getOwnerTotals(String ownerName, OwnerVersion version) {
+        return read(version, session -> CausalReads.find(ownerTotalsCollection, session, Filters.eq("_id", ownerName)).first());
+    }
+
+    // the session, if the version needs one, is started and closed on the pool thread running the read
+    private <T> CompletableFuture<T> read(OwnerVersion version, Function<ClientSession, T> query) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try (ClientSession session = CausalReads.startAfter(mongoClient, version)) {
+                    return query.apply(session);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+}
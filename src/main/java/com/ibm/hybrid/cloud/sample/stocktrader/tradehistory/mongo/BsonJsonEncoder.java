@@ -0,0 +1,83 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import java.io.Writer;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * Writes documents as JSON directly from their raw BSON bytes. Numbers keep their BSON types,
+ * ObjectIds are written as hex strings and dates as ISO-8601 strings, so clients get plain JSON
+ * without any extended JSON wrappers.
+ */
+public class BsonJsonEncoder {
+
+    private static final JsonWriterSettings SETTINGS = JsonWriterSettings.builder()
+        .outputMode(JsonMode.RELAXED)
+        .objectIdConverter((value, writer) -> writer.writeString(value.toHexString()))
+        .dateTimeConverter((value, writer) -> writer.writeString(Instant.ofEpochMilli(value).toString()))
+        .build();
+
+    private static final RawBsonDocumentCodec CODEC = new RawBsonDocumentCodec();
+    private static final BsonDocumentCodec DOCUMENT_CODEC = new BsonDocumentCodec();
+    private static final EncoderContext CONTEXT = EncoderContext.builder().build();
+
+    private BsonJsonEncoder() {
+    }
+
+    public static JsonWriter newWriter(Writer writer) {
+        return new JsonWriter(writer, SETTINGS);
+    }
+
+    /**
+     * Copies the document's bytes to the writer as the next value; nothing is decoded into
+     * Java objects along the way.
+     */
+    public static void write(JsonWriter json, RawBsonDocument doc) {
+        CODEC.encode(json, doc, CONTEXT);
+    }
+
+    /**
+     * @return the document as a JSON string, in the same form as the documents written above
+     */
+    public static String toJson(Document doc) {
+        return doc.toJson(SETTINGS);
+    }
+
+    /**
+     * Writes the document without some of its fields. The other fields are copied into a new
+     * document first, so this is only for the cases where a field has to be dropped.
+     */
+    public static void write(JsonWriter json, RawBsonDocument doc, Collection<String> omit) {
+        BsonDocument copy = new BsonDocument();
+        for (Map.Entry<String, BsonValue> field : doc.entrySet()) {
+            if (!omit.contains(field.getKey())) {
+                copy.put(field.getKey(), field.getValue());
+            }
+        }
+        DOCUMENT_CODEC.encode(json, copy, CONTEXT);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.MongoClient;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+
+import org.bson.conversions.Bson;
+
+import java.util.List;
+
+/**
+ * Causally consistent reads of an owner's version and of the data a response tagged with it is
+ * built from, so the data is never older than the version, whichever members of the replica set
+ * serve the two. The version is read in a session whose operation and cluster times go with it;
+ * the data is read later, maybe on another thread, in a new session advanced to those times, and
+ * the member serving it waits until it has caught up that far before answering. Sessions need
+ * MongoDB 3.6 or later, and are only used when reads are configured away from the primary; a
+ * version read without one carries no times, and the data is then read without a session too.
+ */
+final class CausalReads {
+
+    private static final ClientSessionOptions CAUSAL = ClientSessionOptions.builder().causallyConsistent(true).build();
+
+    private CausalReads() {
+    }
+
+    static ClientSession start(MongoClient client) {
+        return client.startSession(CAUSAL);
+    }
+
+    /**
+     * @return a session in which nothing older than the version is read, to be closed by the
+     *         caller, or null if the version was read without a session
+     */
+    static ClientSession startAfter(MongoClient client, OwnerVersion version) {
+        if (version == null || version.getOperationTime() == null) {
+            return null;
+        }
+        ClientSession session = start(client);
+        if (version.getClusterTime() != null) {
+            session.advanceClusterTime(version.getClusterTime());
+        }
+        session.advanceOperationTime(version.getOperationTime());
+        return session;
+    }
+
+    static <T> FindIterable<T> find(MongoCollection<T> collection, ClientSession session, Bson filter) {
+        return session == null ? collection.find(filter) : collection.find(session, filter);
+    }
+
+    static <T> AggregateIterable<T> aggregate(MongoCollection<?> collection, ClientSession session, List<Bson> pipeline,
+            Class<T> resultClass) {
+        return session == null ? collection.aggregate(pipeline, resultClass) : collection.aggregate(session, pipeline, resultClass);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import com.mongodb.client.MongoCursor;
+
+import org.bson.BsonDateTime;
+import org.bson.RawBsonDocument;
+
+import java.io.Closeable;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges cursors that are each in the same ascending order, either by _id or by "when" then _id,
+ * into a single stream in that order, one document at a time, stopping after {@code limit}
+ * documents.
+ */
+class MergedCursor implements Iterator<RawBsonDocument>, Closeable {
+
+    static final Comparator<RawBsonDocument> BY_ID = Comparator.comparing(doc -> doc.getObjectId("_id").getValue());
+
+    // dates sort after the strings left by trades whose time could not be parsed, as in an index
+    static final Comparator<RawBsonDocument> BY_TIME = Comparator
+        .comparing((RawBsonDocument doc) -> doc.get("when") instanceof BsonDateTime, Boolean::compare)
+        .thenComparing(doc -> doc.get("when") instanceof BsonDateTime ? doc.getDateTime("when").getValue() : 0L)
+        .thenComparing(BY_ID);
+
+    private final List<MongoCursor<RawBsonDocument>> cursors;
+    private final Comparator<RawBsonDocument> order;
+    private final RawBsonDocument[] heads;
+    private int remaining;
+
+    /**
+     * @param order - {@link #BY_ID} or {@link #BY_TIME}
+     * @param limit - maximum documents returned, or 0 for all
+     */
+    MergedCursor(List<MongoCursor<RawBsonDocument>> cursors, Comparator<RawBsonDocument> order, int limit) {
+        this.cursors = cursors;
+        this.order = order;
+        this.heads = new RawBsonDocument[cursors.size()];
+        this.remaining = limit > 0 ? limit : -1;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return remaining != 0 && lowest() >= 0;
+    }
+
+    @Override
+    public RawBsonDocument next() {
+        int i = remaining == 0 ? -1 : lowest();
+        if (i < 0) {
+            throw new NoSuchElementException();
+        }
+        RawBsonDocument doc = heads[i];
+        heads[i] = null;
+        if (remaining > 0) {
+            remaining--;
+        }
+        return doc;
+    }
+
+    // index of the cursor holding the lowest document, filling empty heads first
+    private int lowest() {
+        int lowest = -1;
+        for (int i = 0; i < heads.length; i++) {
+            if (heads[i] == null && cursors.get(i).hasNext()) {
+                heads[i] = cursors.get(i).next();
+            }
+            if (heads[i] != null && (lowest < 0 || order.compare(heads[i], heads[lowest]) < 0)) {
+                lowest = i;
+            }
+        }
+        return lowest;
+    }
+
+    @Override
+    public void close() {
+        for (MongoCursor<RawBsonDocument> cursor : cursors) {
+            cursor.close();
+        }
+    }
+}
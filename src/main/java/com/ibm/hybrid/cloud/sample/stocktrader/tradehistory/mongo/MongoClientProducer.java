@@ -0,0 +1,199 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Disposes;
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Produces the application's one MongoClient, with its connection pool sized and bounded by the
+ * settings below, and closes it when the application is stopped. Nothing else should create a
+ * client.
+ *
+ * The client finds Mongo from MONGO_URI, a standard mongodb:// connection string, when that is
+ * set; options given in the string win over the settings below. Otherwise MONGO_IP is a comma
+ * separated seed list of host or host:port entries, MONGO_PORT the port of those without one, and
+ * MONGO_USER, MONGO_PASSWORD and MONGO_AUTH_DB the credential. Set MONGO_REPLICA_SET to the
+ * replica set's name, or list more than one seed, so the driver discovers every member and the
+ * read preferences in {@link ReadSettings} can route reads to secondaries; a single seed without
+ * it is connected to directly and every read goes to that one server.
+ */
+@ApplicationScoped
+public class MongoClientProducer {
+
+    private static Logger logger = Logger.getLogger(MongoClientProducer.class.getName());
+
+    @Inject
+    @ConfigProperty(name = "MONGO_URI")
+    private Optional<String> MONGO_URI;
+
+    @Inject
+    @ConfigProperty(name = "MONGO_IP")
+    private Optional<String> MONGO_IP;
+
+    @Inject
+    @ConfigProperty(name = "MONGO_PORT", defaultValue = "27017")
+    private int MONGO_PORT;
+
+    @Inject
+    @ConfigProperty(name = "MONGO_REPLICA_SET")
+    private Optional<String> MONGO_REPLICA_SET;
+
+    @Inject
+    @ConfigProperty(name = "MONGO_USER")
+    private Optional<String> MONGO_USER;
+
+    @Inject
+    @ConfigProperty(name = "MONGO_PASSWORD", defaultValue = "")
+    private String MONGO_PASSWORD;
+
+    @Inject
+    @ConfigProperty(name = "MONGO_AUTH_DB", defaultValue = "admin")
+    private String MONGO_AUTH_DB;
+
+    // connections kept per server
+    @Inject
+    @ConfigProperty(name = "MONGO_POOL_MAX_SIZE", defaultValue = "100")
+    private int POOL_MAX_SIZE;
+
+    @Inject
+    @ConfigProperty(name = "MONGO_POOL_MIN_SIZE", defaultValue = "0")
+    private int POOL_MIN_SIZE;
+
+    // operations allowed to wait for a connection once the pool is exhausted; more fail at once
+    @Inject
+    @ConfigProperty(name = "MONGO_POOL_MAX_WAIT_QUEUE", defaultValue = "500")
+    private int POOL_MAX_WAIT_QUEUE;
+
+    @Inject
+    @ConfigProperty(name = "MONGO_POOL_MAX_WAIT_MS", defaultValue = "2000")
+    private int POOL_MAX_WAIT_MS;
+
+    @Inject
+    @ConfigProperty(name = "MONGO_POOL_MAX_IDLE_MS", defaultValue = "60000")
+    private int POOL_MAX_IDLE_MS;
+
+    @Inject
+    @ConfigProperty(name = "MONGO_CONNECT_TIMEOUT_MS", defaultValue = "10000")
+    private int CONNECT_TIMEOUT_MS;
+
+    // 0 waits for as long as an operation takes, which index builds and $out rebuilds need
+    @Inject
+    @ConfigProperty(name = "MONGO_SOCKET_TIMEOUT_MS", defaultValue = "0")
+    private int SOCKET_TIMEOUT_MS;
+
+    // how long an operation waits for a usable server, e.g. during an election, before failing
+    @Inject
+    @ConfigProperty(name = "MONGO_SERVER_SELECTION_TIMEOUT_MS", defaultValue = "5000")
+    private int SERVER_SELECTION_TIMEOUT_MS;
+
+    @Produces
+    @Singleton
+    public MongoClient mongoClient() {
+        MongoClientOptions.Builder options = MongoClientOptions.builder()
+            .connectionsPerHost(POOL_MAX_SIZE)
+            .minConnectionsPerHost(POOL_MIN_SIZE)
+            // the legacy client sizes its wait queue as a multiple of the pool size
+            .threadsAllowedToBlockForConnectionMultiplier(Math.max(1, (POOL_MAX_WAIT_QUEUE + POOL_MAX_SIZE - 1) / POOL_MAX_SIZE))
+            .maxWaitTime(POOL_MAX_WAIT_MS)
+            .maxConnectionIdleTime(POOL_MAX_IDLE_MS)
+            .connectTimeout(CONNECT_TIMEOUT_MS)
+            .socketTimeout(SOCKET_TIMEOUT_MS)
+            .serverSelectionTimeout(SERVER_SELECTION_TIMEOUT_MS);
+        MongoClient client;
+        if (MONGO_URI.isPresent() && !MONGO_URI.get().trim().isEmpty()) {
+            MongoClientURI uri = new MongoClientURI(MONGO_URI.get().trim(), options);
+            logger.info(String.format("Connecting to Mongo at %s, replica set %s, with a pool of up to %d connections",
+                uri.getHosts(), uri.getOptions().getRequiredReplicaSetName(), uri.getOptions().getConnectionsPerHost()));
+            client = new MongoClient(uri);
+        } else {
+            if (MONGO_REPLICA_SET.isPresent() && !MONGO_REPLICA_SET.get().trim().isEmpty()) {
+                options.requiredReplicaSetName(MONGO_REPLICA_SET.get().trim());
+            }
+            List<ServerAddress> seeds = seeds();
+            logger.info(String.format("Connecting to Mongo at %s, replica set %s, with a pool of up to %d connections",
+                seeds, MONGO_REPLICA_SET.orElse(null), POOL_MAX_SIZE));
+            MongoClientOptions built = options.build();
+            MongoCredential credential = credential();
+            if (seeds.size() == 1 && built.getRequiredReplicaSetName() == null) {
+                client = credential == null ? new MongoClient(seeds.get(0), built) : new MongoClient(seeds.get(0), credential, built);
+            } else {
+                // a seed list makes the driver discover the whole replica set
+                client = credential == null ? new MongoClient(seeds, built) : new MongoClient(seeds, credential, built);
+            }
+        }
+        try {
+            // fail now rather than on the first request if no server can be reached
+            client.getDatabase("admin").runCommand(new Document("ping", 1));
+        } catch (RuntimeException e) {
+            client.close();
+            throw e;
+        }
+        return client;
+    }
+
+    public void close(@Disposes MongoClient client) {
+        logger.info("Closing Mongo client");
+        client.close();
+    }
+
+    private List<ServerAddress> seeds() {
+        String hosts = MONGO_IP.orElse("").trim();
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("Set MONGO_URI, or MONGO_IP to the Mongo host or a comma separated seed list");
+        }
+        List<ServerAddress> seeds = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            int colon = host.lastIndexOf(':');
+            // a bracketed IPv6 address has colons of its own
+            if (colon > host.lastIndexOf(']')) {
+                try {
+                    seeds.add(new ServerAddress(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1))));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("MONGO_IP entries must be host or host:port, was " + host);
+                }
+            } else {
+                seeds.add(new ServerAddress(host, MONGO_PORT));
+            }
+        }
+        return seeds;
+    }
+
+    private MongoCredential credential() {
+        if (!MONGO_USER.isPresent() || MONGO_USER.get().isEmpty()) {
+            return null;
+        }
+        return MongoCredential.createCredential(MONGO_USER.get(), MONGO_AUTH_DB, MONGO_PASSWORD.toCharArray());
+    }
+}
@@ -13,28 +13,69 @@
 package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoIterable;
 import com.mongodb.client.FindIterable;
-import com.mongodb.client.MapReduceIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.MongoCredential;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Field;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.MongoSocketException;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ErrorCategory;
+import com.mongodb.bulk.BulkWriteError;
 
+import org.bson.BsonDocument;
+import org.bson.BsonType;
 import org.bson.Document;
-import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.json.JsonWriter;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 
 //Logging (JSR 47)
 import java.util.logging.Level;
@@ -45,124 +86,1102 @@ import java.net.UnknownHostException;
 import java.net.MalformedURLException;
 
 import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.client.Quote;
-import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.client.StockQuoteClient;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.client.QuoteCache;
 import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.demo.DemoConsumedMessage;
 
 import org.eclipse.microprofile.rest.client.RestClientBuilder;
 
 import java.net.UnknownHostException;
 
+import org.eclipse.microprofile.config.Config;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import javax.servlet.http.HttpServletRequest;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
 import javax.inject.Inject;
 import javax.inject.Provider;
 
+/**
+ * Reads and writes trades and their rollups. One instance is shared by the whole application,
+ * on the MongoClient produced by {@link MongoClientProducer}.
+ */
+@ApplicationScoped
 public class MongoConnector {
 
-    private char[] MONGO_PASSWORD;
-    private String MONGO_AUTH_DB;
-    private String MONGO_USER;
-    private String MONGO_IP;
-    private int MONGO_PORT;
-    private String MONGO_DATABASE;
-
-    public static MongoDatabase database;
-    public static MongoClient mongoClient;
-    public MongoCollection<Document> tradesCollection;
+    private MongoClient client;
+    private MongoDatabase database;
+    private MongoCollection<Document> tradesCollection;
     public static final String TRADE_COLLECTION_NAME = "test_collection";
 
+    // running shares, notional and commission per owner and symbol, maintained on every insert;
+    // each rollup collection is named after the trades collection it rolls up, with these suffixes
+    private MongoCollection<Document> positionsCollection;
+    public static final String POSITIONS_SUFFIX = "_positions";
+
+    // the same totals per owner, keyed by owner name
+    private MongoCollection<Document> ownerTotalsCollection;
+    public static final String OWNER_TOTALS_SUFFIX = "_owner_totals";
+
+    // the source offsets the last rebuild of the rollups counted, the claims of a process seeding
+    // or rebuilding them, and what each consumer last reported
+    private MongoCollection<Document> rollupMarksCollection;
+    public static final String ROLLUP_MARKS_SUFFIX = "_rollup_marks";
+    private static final String REBUILT_OFFSETS = "rebuilt";
+    private static final String SEEDING = "seeding";
+    private static final String REBUILDING = "rebuilding";
+    private static final String CONSUMER_PREFIX = "consumer:";
+
+    // the same collections for reads, with the read preference and concern configured for each
+    // class of query; writes, index builds, rebuilds and the latest-trade reads use the primary
+    private MongoCollection<Document> historyReads;
+    private MongoCollection<Document> positionReads;
+    private MongoCollection<Document> ownerTotalReads;
+
+    // set when any of those reads are away from the primary; an owner's version and the reads
+    // after it are then made in causally consistent sessions, see CausalReads
+    private boolean causalReads;
+
+    // trade history read from the primary, for streaming new trades to subscribers
+    private MongoCollection<Document> primaryReads;
+
+    // set when TRADE_STORAGE_MODE=bucket; new trades are then appended to per owner and period
+    // buckets, and reads combine them with any trades stored individually before the switch
+    private TradeBuckets tradeBuckets;
+    private TradeBuckets primaryBuckets;
+
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+    // the last trades written through this connector, after those seeded from the collection;
+    // RECENT_TRADES_SIZE of them for the injected connector
+    private static final int DEFAULT_RECENT_TRADES_SIZE = 100;
+
+    private static final String DEFAULT_BUCKET_SPAN = "day";
+    private static final int DEFAULT_BUCKET_MAX_TRADES = 1000;
+    private RecentTrades recentTrades = new RecentTrades(DEFAULT_RECENT_TRADES_SIZE);
+
+    // serves time-range reads in time order, now that "when" is stored as a date
+    private static final List<String> OWNER_WHEN_INDEX = Arrays.asList("owner", "when", "_id");
+
+    // compound indexes matching the filters issued below; the _id after the equality fields serves
+    // the keyset pagination sort, and owner-only aggregates use any of the owner prefixes. The
+    // (owner, _id, ...) index also carries the fields most history callers ask for, so those
+    // projections are answered from the index alone.
+    private static final List<List<String>> TRADE_INDEX_KEYS = Arrays.asList(
+        Arrays.asList("owner", "symbol", "_id"),
+        Arrays.asList("owner", "_id", "symbol", "shares", "price", "when"),
+        OWNER_WHEN_INDEX);
+
+    // indexes earlier versions created that no query uses any more, dropped once the indexes
+    // replacing them are built
+    private static final List<List<String>> RETIRED_TRADE_INDEX_KEYS = Arrays.asList(
+        Arrays.asList("owner", "_id"),
+        Arrays.asList("owner", "when"));
+
+    // size of the bulk writes issued by the maintenance jobs
+    private static final int BULK_BATCH_SIZE = 500;
+
+    private static final List<IndexModel> TRADE_INDEXES = new ArrayList<>();
+    static {
+        for (List<String> keys : TRADE_INDEX_KEYS) {
+            TRADE_INDEXES.add(new IndexModel(Indexes.ascending(keys), new IndexOptions().background(true)));
+        }
+        // holds only the trades whose time is still a string, so the migration to dates finds
+        // them without scanning the collection
+        TRADE_INDEXES.add(new IndexModel(Indexes.ascending("when"), new IndexOptions().background(true)
+            .partialFilterExpression(Filters.type("when", BsonType.STRING))));
+    }
+
+    // fields a history projection may name
+    public static final Set<String> TRADE_FIELDS = new LinkedHashSet<>(Arrays.asList(
+        "_id", "topic", "id", "owner", "symbol", "shares", "price", "notional", "when", "commission"));
+
+    private static final List<IndexModel> POSITION_INDEXES = Arrays.asList(
+        new IndexModel(Indexes.ascending("owner", "symbol"), new IndexOptions().unique(true)));
+
+    // trades collections whose indexes are known to be built, and so may be hinted
+    private static final Set<String> INDEXED_COLLECTIONS = ConcurrentHashMap.newKeySet();
+
 	private static Logger logger = Logger.getLogger(MongoConnector.class.getName());
     
-    @Inject 
-    @RestClient  
-    private StockQuoteClient stockQuoteClient;
-
-    public MongoConnector() throws NullPointerException,IllegalArgumentException,MongoSocketException {
-        //Mongo DB Connection
-
-        logger.info("Initializing Mongo Connector");
-        initializeProperties();
-        try{
-            if(MONGO_IP == null || MONGO_PORT == 0 || MONGO_USER == null || MONGO_AUTH_DB == null || MONGO_PASSWORD == null || MONGO_DATABASE == null){
-                throw new NullPointerException("One or more mongo properties cannot be found or were not set.");
-            }
-            ServerAddress sa = new ServerAddress(MONGO_IP,MONGO_PORT);
-            MongoCredential credential = MongoCredential.createCredential(MONGO_USER, MONGO_AUTH_DB, MONGO_PASSWORD);
-            mongoClient = new MongoClient(sa, Arrays.asList(credential));
-            try {
-                mongoClient.getAddress();
-            } catch (Exception e) {
-                logException(e);
-                mongoClient.close();
-                throw e;
-            }
-            database = mongoClient.getDatabase( MONGO_DATABASE );      
-        } catch(NullPointerException e){
-            logException(e);
-            throw e;
-        } 
+    @Inject
+    private QuoteCache quoteCache;
 
-        try {
-            tradesCollection = database.getCollection(TRADE_COLLECTION_NAME);
-        } catch (IllegalArgumentException e) {
-            database.createCollection(TRADE_COLLECTION_NAME);
-            tradesCollection = database.getCollection(TRADE_COLLECTION_NAME);
-        }
-        logger.info("Trades Collection: " + tradesCollection);
+    // how long a total equity is kept; 0, as when not injected, keeps none
+    @Inject
+    @ConfigProperty(name = "TOTAL_EQUITY_TTL_MS", defaultValue = "5000")
+    private long TOTAL_EQUITY_TTL_MS;
+
+    @Inject
+    @ConfigProperty(name = "TOTAL_EQUITY_CACHE_SIZE", defaultValue = "10000")
+    private int TOTAL_EQUITY_CACHE_SIZE;
+
+    // total equity per owner, with the owner's version it was computed at; only fully priced
+    // totals are kept, and dropped when this process writes a trade for the owner
+    private final Map<String, TotalEquity> totalEquities = new ConcurrentHashMap<>();
+
+    @Inject
+    private Event<TradesWritten> tradesWritten;
+
+    // only for the proxy CDI puts in front of the application scoped instance
+    protected MongoConnector() {
     }
 
-    private void initializeProperties(){
-        MONGO_PASSWORD =  System.getenv("MONGO_PASSWORD").toCharArray();
-        MONGO_AUTH_DB = System.getenv("MONGO_AUTH_DB");
-        MONGO_USER = System.getenv("MONGO_USER");
-        MONGO_IP = System.getenv("MONGO_IP");
-        MONGO_PORT = Integer.parseInt(System.getenv("MONGO_PORT"));
-        MONGO_DATABASE = System.getenv("MONGO_DATABASE");
+    @Inject
+    public MongoConnector(MongoClient mClient, Config config, MongoReadSettings reads,
+            @ConfigProperty(name = "TRADE_STORAGE_MODE", defaultValue = "document") String storageMode,
+            @ConfigProperty(name = "TRADE_BUCKET_SPAN", defaultValue = DEFAULT_BUCKET_SPAN) String bucketSpan,
+            @ConfigProperty(name = "TRADE_BUCKET_MAX_TRADES", defaultValue = "1000") int bucketMaxTrades,
+            @ConfigProperty(name = "RECENT_TRADES_SIZE", defaultValue = "100") int recentTradesSize) {
+        this(mClient, config.getValue("MONGO_DATABASE", String.class), TRADE_COLLECTION_NAME,
+            storageMode, bucketSpan, bucketMaxTrades, reads.getHistory(), reads.getAggregates());
+        recentTrades = new RecentTrades(recentTradesSize);
+        logger.info("Trades Collection: " + tradesCollection.getNamespace());
     }
 
+    // stores a document per trade
     public MongoConnector(MongoClient mClient, String mongoDatabase, String mongoCollection) {
-        mongoClient = mClient;
-        database = mongoClient.getDatabase( mongoDatabase );
+        this(mClient, mongoDatabase, mongoCollection, "document");
         database.createCollection(mongoCollection);
+    }
+
+    /**
+     * @param storageMode - "bucket" to store trades in day buckets of up to 1000 trades, anything
+     *        else for a document per trade
+     */
+    public MongoConnector(MongoClient mClient, String mongoDatabase, String mongoCollection, String storageMode) {
+        this(mClient, mongoDatabase, mongoCollection, storageMode, DEFAULT_BUCKET_SPAN, DEFAULT_BUCKET_MAX_TRADES,
+            ReadSettings.PRIMARY, ReadSettings.PRIMARY);
+    }
+
+    /**
+     * @param bucketSpan - "hour" or "day", the period a bucket covers in bucket mode
+     * @param bucketMaxTrades - the most trades a bucket holds in bucket mode
+     * @param historyReads - how trade history lists are read
+     * @param aggregateReads - how positions, totals and other rolled up values are read
+     */
+    public MongoConnector(MongoClient mClient, String mongoDatabase, String mongoCollection, String storageMode,
+            String bucketSpan, int bucketMaxTrades, ReadSettings historyReads, ReadSettings aggregateReads) {
+        client = mClient;
+        database = mClient.getDatabase( mongoDatabase );
         tradesCollection = database.getCollection(mongoCollection);
+        positionsCollection = database.getCollection(mongoCollection + POSITIONS_SUFFIX);
+        ownerTotalsCollection = database.getCollection(mongoCollection + OWNER_TOTALS_SUFFIX);
+        rollupMarksCollection = database.getCollection(mongoCollection + ROLLUP_MARKS_SUFFIX);
+        this.historyReads = historyReads.apply(tradesCollection);
+        positionReads = aggregateReads.apply(positionsCollection);
+        ownerTotalReads = aggregateReads.apply(ownerTotalsCollection);
+        causalReads = !historyReads.isPrimary() || !aggregateReads.isPrimary();
+        primaryReads = ReadSettings.PRIMARY.apply(tradesCollection);
+        initializeStorageMode(storageMode, bucketSpan, bucketMaxTrades, historyReads);
+    }
+
+    private void initializeStorageMode(String storageMode, String bucketSpan, int bucketMaxTrades, ReadSettings historyReads) {
+        if ("bucket".equalsIgnoreCase(storageMode)) {
+            String bucketsName = tradesCollection.getNamespace().getCollectionName() + TradeBuckets.COLLECTION_SUFFIX;
+            tradeBuckets = new TradeBuckets(database.getCollection(bucketsName), bucketSpan, bucketMaxTrades, historyReads);
+            primaryBuckets = new TradeBuckets(database.getCollection(bucketsName), bucketSpan, bucketMaxTrades, ReadSettings.PRIMARY);
+            logger.info("Storing trades in buckets in " + bucketsName);
+        }
+    }
+
+    /**
+     * Creates the indexes the read queries rely on, drops the ones they no longer use and logs
+     * which index the query planner picks for each query shape. The builds run in the background
+     * on the server, but this call still waits for them, so keep it off the request path; queries
+     * only hint the indexes once it has returned. Only the first successful call for a collection
+     * does any work; set MONGO_ENSURE_INDEXES=false when indexes are managed outside the
+     * application.
+     */
+    public void ensureIndexes() {
+        if ("false".equalsIgnoreCase(System.getenv("MONGO_ENSURE_INDEXES"))) {
+            logger.info("Index creation disabled by MONGO_ENSURE_INDEXES");
+            return;
+        }
+        String namespace = tradesCollection.getNamespace().getFullName();
+        if (INDEXED_COLLECTIONS.contains(namespace)) {
+            return;
+        }
+        try {
+            logger.info("Ensuring indexes on " + namespace + ": " + tradesCollection.createIndexes(TRADE_INDEXES));
+            INDEXED_COLLECTIONS.add(namespace);
+            positionsCollection.createIndexes(POSITION_INDEXES);
+            if (tradeBuckets != null) {
+                tradeBuckets.ensureIndexes();
+            }
+            dropRetiredIndexes();
+            logQueryPlans();
+        } catch (Exception e) {
+            logException(e);
+        }
+    }
+
+    private void dropRetiredIndexes() {
+        for (Document index : tradesCollection.listIndexes()) {
+            Document key = index.get("key", Document.class);
+            if (key != null && RETIRED_TRADE_INDEX_KEYS.contains(new ArrayList<>(key.keySet()))
+                    && key.values().stream().allMatch(direction -> direction instanceof Number && ((Number) direction).intValue() == 1)) {
+                logger.info("Dropping unused index " + index.getString("name") + " on " + tradesCollection.getNamespace());
+                tradesCollection.dropIndex(index.getString("name"));
+            }
+        }
+    }
+
+    // explained with the _id sort used by trade history; the aggregates start with the same
+    // $match filters, so their plans follow these
+    private void logQueryPlans() {
+        Map<String, Bson> shapes = new LinkedHashMap<>();
+        shapes.put("trades by owner", Filters.eq("owner", ""));
+        shapes.put("trades by owner and symbol", Filters.and(Filters.eq("owner", ""), Filters.eq("symbol", "")));
+        for (Map.Entry<String, Bson> shape : shapes.entrySet()) {
+            BsonDocument filter = shape.getValue().toBsonDocument(BsonDocument.class, tradesCollection.getCodecRegistry());
+            Document explain = database.runCommand(new Document("explain",
+                    new Document("find", tradesCollection.getNamespace().getCollectionName())
+                        .append("filter", filter)
+                        .append("sort", new Document("_id", 1)))
+                .append("verbosity", "queryPlanner"));
+            List<String> indexNames = new ArrayList<>();
+            Document planner = (Document) explain.get("queryPlanner");
+            collectIndexNames(planner == null ? null : (Document) planner.get("winningPlan"), indexNames);
+            logger.info(String.format("Query shape '%s' uses %s", shape.getKey(),
+                indexNames.isEmpty() ? "a collection scan" : "index " + indexNames));
+        }
+    }
+
+    private static void collectIndexNames(Document stage, List<String> indexNames) {
+        if (stage == null) {
+            return;
+        }
+        if (stage.get("indexName") instanceof String) {
+            indexNames.add(stage.getString("indexName"));
+        }
+        if (stage.get("winningPlan") instanceof Document) {
+            collectIndexNames((Document) stage.get("winningPlan"), indexNames);
+        }
+        if (stage.get("inputStage") instanceof Document) {
+            collectIndexNames((Document) stage.get("inputStage"), indexNames);
+        }
+        for (String key : Arrays.asList("inputStages", "shards")) {
+            if (stage.get(key) instanceof List) {
+                for (Object child : (List<?>) stage.get(key)) {
+                    if (child instanceof Document) {
+                        collectIndexNames((Document) child, indexNames);
+                    }
+                }
+            }
+        }
     }
 
     //{ "owner":"John", "symbol":"IBM", "shares":3, "price":120, "when":"now", "commission":0  } 
     public void insertStockPurchase(StockPurchase sp, String topic) {
         //Only add to DB if it's a valid Symbol 
         if( sp.getPrice() > 0 ) {
-            Document doc = new Document("topic", topic)
-                    .append("id", sp.getId())
-                    .append("owner", sp.getOwner())
-                    .append("symbol", sp.getSymbol())
-                    .append("shares", sp.getShares())
-                    .append("price", sp.getPrice())
-                    .append("notional", sp.getPrice() * sp.getShares())
-                    .append("when", sp.getWhen())
-                    .append("commission", sp.getCommission());
+            Document doc = toDocument(sp, topic, new ObjectId());
+            if (tradeBuckets != null) {
+                tradeBuckets.append(Arrays.asList(doc), WriteConcern.ACKNOWLEDGED);
+            } else {
                 tradesCollection.insertOne(doc);
+            }
+            recentTrades.add(doc);
+            updatePositions(Arrays.asList(doc), WriteConcern.ACKNOWLEDGED);
+            fireTradesWritten(Arrays.asList(doc));
         }
     }
 
-    public JSONObject getTrades(String ownerName) {
-        // MongoCollection<Document> tradesCollection = database.getCollection(TRADE_DATABASE);
+    /**
+     * Writes every valid purchase in the batch with a single unordered insertMany, or one upsert
+     * per bucket in bucket mode, acknowledged by a majority of the replica set so callers can
+     * safely commit the source offsets afterwards. Each trade's _id comes from the record it was
+     * consumed from, so a batch that is written again after a rewind only adds the trades that
+     * did not make it the first time; the ones already stored are skipped, not duplicated, and
+     * only added to the rollups if they weren't already.
+     * @param batch - purchases collected from one or more Kafka polls
+     * @return number of trades written, not counting those already stored
+     */
+    public int insertStockPurchases(StockPurchaseBatch batch) {
+        List<StockPurchase> purchases = batch.getPurchases();
+        List<TradeSource> sources = batch.getSources();
+        List<Document> docs = new ArrayList<>(purchases.size());
+        for (int i = 0; i < purchases.size(); i++) {
+            StockPurchase sp = purchases.get(i);
+            //Only add to DB if it's a valid Symbol 
+            if( sp.getPrice() > 0 ) {
+                TradeSource source = sources.get(i);
+                docs.add(toDocument(sp, source.getTopic(), source.toObjectId())
+                    .append("partition", source.getPartition())
+                    .append("offset", source.getOffset()));
+            }
+        }
+        if (docs.isEmpty()) {
+            return 0;
+        }
+        List<Document> inserted;
+        if (tradeBuckets != null) {
+            inserted = tradeBuckets.append(docs, WriteConcern.MAJORITY);
+        } else {
+            inserted = insertNew(docs);
+        }
+        if (!inserted.isEmpty()) {
+            recentTrades.addAll(inserted);
+        }
+        // trades stored by an earlier attempt may not have been counted yet
+        updatePositions(docs, WriteConcern.MAJORITY);
+        if (!inserted.isEmpty()) {
+            fireTradesWritten(inserted);
+        }
+        return inserted.size();
+    }
 
-        FindIterable<Document> docs = this.tradesCollection.find(Filters.eq("owner", ownerName));
-        return docsToJsonObject(docs, "transactions");
+    // inserts the trades, counting one that is already stored as written
+    private List<Document> insertNew(List<Document> docs) {
+        try {
+            tradesCollection.withWriteConcern(WriteConcern.MAJORITY)
+                .insertMany(docs, new InsertManyOptions().ordered(false));
+            return docs;
+        } catch (MongoBulkWriteException e) {
+            // any other failure, including a write concern error on trades that did land, leaves
+            // the batch to be written again
+            if (e.getWriteConcernError() != null) {
+                throw e;
+            }
+            Set<Integer> duplicates = new HashSet<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+                duplicates.add(error.getIndex());
+            }
+            logger.info(duplicates.size() + " trades were already stored");
+            List<Document> inserted = new ArrayList<>(docs.size() - duplicates.size());
+            for (int i = 0; i < docs.size(); i++) {
+                if (!duplicates.contains(i)) {
+                    inserted.add(docs.get(i));
+                }
+            }
+            return inserted;
+        }
+    }
+
+    private void fireTradesWritten(List<Document> docs) {
+        if (tradesWritten != null) {
+            tradesWritten.fire(new TradesWritten(docs));
+        }
+    }
+
+    /**
+     * Adds the trades to the owner's positions and totals with one upsert per owner/symbol and
+     * per owner. The increments are applied after the trades themselves are written, so a failure
+     * between the two gets the whole batch redelivered, trades that were already stored included.
+     * Each position and total therefore records, per source partition, the offset of the last
+     * trade it counts and only counts trades past that offset, or past the offsets the last
+     * {@link #rebuildPositions()} counted; a trade is added exactly once however often its record
+     * is delivered. Trades written without a source record are always added. Each owner total
+     * that changes also has its version incremented, see {@link #getOwnerVersion(String)}.
+     * Nothing is added while a rebuild is claimed, see {@link #claimRebuild(long)}; the write
+     * fails instead and is retried.
+     */
+    private void updatePositions(List<Document> trades, WriteConcern writeConcern) {
+        Set<String> owners = new LinkedHashSet<>();
+        boolean sourced = false;
+        for (Document trade : trades) {
+            owners.add(trade.getString("owner"));
+            sourced |= sourceKey(trade) != null;
+        }
+        // read from the primary; only this writer adds trades from these partitions
+        Map<String, Long> rebuilt = new HashMap<>();
+        for (Document mark : rollupMarksCollection.find(Filters.in("_id", REBUILT_OFFSETS, REBUILDING))) {
+            if (REBUILDING.equals(mark.get("_id"))) {
+                throw new MongoException("The rollups are being rebuilt, trades will be counted once the rebuild has finished");
+            }
+            rebuilt = offsets(mark);
+        }
+        Map<Object, Map<String, Long>> counted = new HashMap<>();
+        if (sourced) {
+            for (Document position : positionsCollection.find(Filters.in("owner", owners))
+                    .projection(Projections.include("owner", "symbol", "offsets"))) {
+                counted.put(Arrays.asList(position.getString("owner"), position.getString("symbol")), offsets(position));
+            }
+            for (Document total : ownerTotalsCollection.find(Filters.in("_id", owners)).projection(Projections.include("offsets"))) {
+                counted.put(total.get("_id"), offsets(total));
+            }
+        }
+
+        Map<List<String>, PositionDelta> positions = new LinkedHashMap<>();
+        Map<String, PositionDelta> totals = new LinkedHashMap<>();
+        for (Document trade : trades) {
+            String owner = trade.getString("owner");
+            String symbol = trade.getString("symbol");
+            Map<String, Long> rebuiltOffsets = rebuilt;
+            positions.computeIfAbsent(Arrays.asList(owner, symbol),
+                key -> new PositionDelta(rebuiltOffsets, counted.get(key))).add(trade);
+            totals.computeIfAbsent(owner, key -> new PositionDelta(rebuiltOffsets, counted.get(key))).add(trade);
+        }
+
+        List<WriteModel<Document>> positionUpdates = new ArrayList<>(positions.size());
+        for (Map.Entry<List<String>, PositionDelta> position : positions.entrySet()) {
+            if (position.getValue().trades > 0) {
+                positionUpdates.add(new UpdateOneModel<>(
+                    Filters.and(Filters.eq("owner", position.getKey().get(0)), Filters.eq("symbol", position.getKey().get(1))),
+                    position.getValue().toUpdate(), UPSERT));
+            }
+        }
+        List<WriteModel<Document>> totalUpdates = new ArrayList<>(totals.size());
+        Set<String> updated = new LinkedHashSet<>();
+        for (Map.Entry<String, PositionDelta> total : totals.entrySet()) {
+            if (total.getValue().trades > 0) {
+                totalUpdates.add(new UpdateOneModel<>(Filters.eq("_id", total.getKey()), total.getValue().toVersionedUpdate(), UPSERT));
+                updated.add(total.getKey());
+            }
+        }
+        BulkWriteOptions unordered = new BulkWriteOptions().ordered(false);
+        if (!positionUpdates.isEmpty()) {
+            positionsCollection.withWriteConcern(writeConcern).bulkWrite(positionUpdates, unordered);
+        }
+        if (!totalUpdates.isEmpty()) {
+            ownerTotalsCollection.withWriteConcern(writeConcern).bulkWrite(totalUpdates, unordered);
+        }
+        totalEquities.keySet().removeAll(updated);
+    }
+
+    // names the Kafka partition a trade was consumed from, or null for a trade written directly;
+    // topic names cannot contain ':', so it stands in for the '.' a field name cannot hold
+    private static String sourceKey(Document trade) {
+        if (!(trade.get("topic") instanceof String) || !(trade.get("partition") instanceof Number)
+                || !(trade.get("offset") instanceof Number)) {
+            return null;
+        }
+        return trade.getString("topic").replace('.', ':') + ":" + trade.get("partition");
+    }
+
+    private static Map<String, Long> offsets(Document rollup) {
+        Map<String, Long> offsets = new HashMap<>();
+        Object recorded = rollup == null ? null : rollup.get("offsets");
+        if (recorded instanceof Document) {
+            for (Map.Entry<String, Object> offset : ((Document) recorded).entrySet()) {
+                offsets.put(offset.getKey(), ((Number) offset.getValue()).longValue());
+            }
+        }
+        return offsets;
+    }
+
+    private static class PositionDelta {
+        // per source partition, the offset of the last trade already counted
+        final Map<String, Long> counted = new HashMap<>();
+        final Map<String, Long> offsets = new HashMap<>();
+        long shares;
+        double notional;
+        double commission;
+        long trades;
+
+        PositionDelta(Map<String, Long> rebuilt, Map<String, Long> recorded) {
+            counted.putAll(rebuilt);
+            if (recorded != null) {
+                recorded.forEach((key, offset) -> counted.merge(key, offset, Math::max));
+            }
+        }
+
+        void add(Document trade) {
+            String key = sourceKey(trade);
+            if (key != null) {
+                long offset = ((Number) trade.get("offset")).longValue();
+                Long last = counted.get(key);
+                if (last != null && offset <= last) {
+                    return;
+                }
+                offsets.merge(key, offset, Math::max);
+            }
+            shares += trade.getInteger("shares");
+            notional += trade.getDouble("notional");
+            commission += trade.getDouble("commission");
+            trades++;
+        }
+
+        Document toUpdate() {
+            Document update = new Document("$inc", new Document("shares", shares)
+                .append("notional", notional)
+                .append("commission", commission)
+                .append("trades", trades));
+            if (!offsets.isEmpty()) {
+                Document max = new Document();
+                for (Map.Entry<String, Long> offset : offsets.entrySet()) {
+                    max.append("offsets." + offset.getKey(), offset.getValue());
+                }
+                update.append("$max", max);
+            }
+            return update;
+        }
+
+        // owner totals also carry the owner's version
+        Document toVersionedUpdate() {
+            Document update = toUpdate();
+            update.get("$inc", Document.class).append("version", 1L);
+            return update.append("$currentDate", new Document("modified", true));
+        }
+    }
+
+    /**
+     * Regenerates the positions and owner totals from the trade log, replacing both collections,
+     * and records the last offset of every source partition it counted, so that records delivered
+     * again afterwards are not counted a second time. Increments made while the rebuild runs are
+     * lost, so every consumer must have paused first, see {@link #claimRebuild(long)}.
+     * @return JSONObject with the number of positions and owners rebuilt
+     */
+    public JSONObject rebuildPositions() {
+        logger.info("Rebuilding positions from " + tradesCollection.getNamespace());
+        // recorded first: with ingestion paused every trade in the log is already counted, so
+        // offsets that get ahead of the rollups can't cause a trade to be skipped
+        Document offsets = new Document();
+        addOffsets(tradesCollection.aggregate(Arrays.asList(
+            Aggregates.match(Filters.exists("offset")),
+            Aggregates.group(new Document("topic", "$topic").append("partition", "$partition"),
+                Accumulators.max("offset", "$offset")))).allowDiskUse(true), offsets);
+        if (tradeBuckets != null) {
+            addOffsets(tradeBuckets.offsets(), offsets);
+        }
+        rollupMarksCollection.replaceOne(Filters.eq("_id", REBUILT_OFFSETS),
+            new Document("_id", REBUILT_OFFSETS).append("offsets", offsets), new ReplaceOptions().upsert(true));
+        tradesCollection.aggregate(Arrays.asList(
+            Aggregates.group(new Document("owner", "$owner").append("symbol", "$symbol"),
+                Accumulators.sum("shares", "$shares"),
+                Accumulators.sum("notional", "$notional"),
+                Accumulators.sum("commission", "$commission"),
+                Accumulators.sum("trades", 1)),
+            Aggregates.project(Projections.fields(Projections.excludeId(),
+                Projections.computed("owner", "$_id.owner"),
+                Projections.computed("symbol", "$_id.symbol"),
+                Projections.include("shares", "notional", "commission", "trades"))),
+            Aggregates.out(positionsCollection.getNamespace().getCollectionName()))).allowDiskUse(true).toCollection();
+        // the replaced totals lose their versions, so every owner starts again in a new epoch
+        ObjectId epoch = new ObjectId();
+        tradesCollection.aggregate(Arrays.asList(
+            Aggregates.group("$owner",
+                Accumulators.sum("shares", "$shares"),
+                Accumulators.sum("notional", "$notional"),
+                Accumulators.sum("commission", "$commission"),
+                Accumulators.sum("trades", 1)),
+            Aggregates.addFields(new Field<>("epoch", epoch), new Field<>("version", 0L)),
+            Aggregates.out(ownerTotalsCollection.getNamespace().getCollectionName()))).allowDiskUse(true).toCollection();
+        // $out keeps the indexes of a collection it replaces, but not when it creates one
+        positionsCollection.createIndexes(POSITION_INDEXES);
+        if (tradeBuckets != null) {
+            // $out can only write one source, so bucketed trades are added on top of the rollup of
+            // the individually stored ones; owner totals come straight from the bucket sums
+            addToRollup(positionsCollection, tradeBuckets.positions(), id -> Filters.and(
+                Filters.eq("owner", ((Document) id).getString("owner")), Filters.eq("symbol", ((Document) id).getString("symbol"))));
+            addToRollup(ownerTotalsCollection, tradeBuckets.ownerTotals(), id -> Filters.eq("_id", id));
+        }
+
+        // positions and bucketed totals changed after the totals were replaced, so a version read
+        // in between is moved on from, and owners only found in buckets get the epoch too
+        ownerTotalsCollection.updateMany(new Document(), Updates.combine(Updates.set("epoch", epoch),
+            Updates.inc("version", 1L), Updates.currentDate("modified")));
+
+        JSONObject result = new JSONObject()
+            .put("positions", positionsCollection.countDocuments())
+            .put("owners", ownerTotalsCollection.countDocuments());
+        logger.info("Rebuilt positions: " + result);
+        return result;
+    }
+
+    /**
+     * Builds the rollups from the trade log if they have never been built for this trades
+     * collection, as on the first start against it. Only one process seeds at a time, under a
+     * claim recorded in the rollup marks; a claim older than staleMillis is taken to be from a
+     * process that died while seeding and is taken over.
+     * @return true once the rollups have been built, false while another process is building them,
+     *         in which case writing trades should wait
+     */
+    public boolean seedPositions(long staleMillis) {
+        if (rollupMarksCollection.find(Filters.eq("_id", REBUILT_OFFSETS)).first() != null) {
+            return true;
+        }
+        Date now = new Date();
+        try {
+            rollupMarksCollection.insertOne(new Document("_id", SEEDING).append("claimed", now));
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                throw e;
+            }
+            if (rollupMarksCollection.updateOne(
+                    Filters.and(Filters.eq("_id", SEEDING), Filters.lt("claimed", new Date(now.getTime() - staleMillis))),
+                    Updates.set("claimed", now)).getModifiedCount() == 0) {
+                return false;
+            }
+        }
+        logger.info("Seeding the rollups of " + tradesCollection.getNamespace());
+        rebuildPositions();
+        rollupMarksCollection.deleteOne(Filters.eq("_id", SEEDING));
+        return true;
+    }
+
+    /**
+     * Claims the rollups for a rebuild, across every process writing to them. From then on no
+     * trades are added to the rollups, and consumers pause once they see the claim, see
+     * {@link #getRebuildClaim()}. A claim older than staleMillis is taken to be from a process
+     * that died while rebuilding and is taken over.
+     * @return the claim, to be released with {@link #releaseRebuild(ObjectId)}, or null if
+     *         another rebuild holds it
+     */
+    public ObjectId claimRebuild(long staleMillis) {
+        ObjectId claim = new ObjectId();
+        Date now = new Date();
+        try {
+            rollupMarksCollection.withWriteConcern(WriteConcern.MAJORITY)
+                .insertOne(new Document("_id", REBUILDING).append("claim", claim).append("claimed", now));
+            return claim;
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                throw e;
+            }
+        }
+        if (rollupMarksCollection.withWriteConcern(WriteConcern.MAJORITY).updateOne(
+                Filters.and(Filters.eq("_id", REBUILDING), Filters.lt("claimed", new Date(now.getTime() - staleMillis))),
+                Updates.combine(Updates.set("claim", claim), Updates.set("claimed", now))).getModifiedCount() == 0) {
+            return null;
+        }
+        return claim;
+    }
+
+    public void releaseRebuild(ObjectId claim) {
+        rollupMarksCollection.withWriteConcern(WriteConcern.MAJORITY)
+            .deleteOne(Filters.and(Filters.eq("_id", REBUILDING), Filters.eq("claim", claim)));
+    }
+
+    /**
+     * @return the claim of the rebuild in progress, read from the primary, or null if there is none
+     */
+    public ObjectId getRebuildClaim() {
+        Document rebuilding = rollupMarksCollection.find(Filters.eq("_id", REBUILDING)).first();
+        return rebuilding == null ? null : rebuilding.getObjectId("claim");
+    }
+
+    /**
+     * Records that the consumer is alive and, if it has paused for a rebuild and written
+     * everything it consumed before pausing, which rebuild it paused for.
+     * @param paused - the claim of the rebuild the consumer has paused for, or null
+     */
+    public void reportConsumer(String consumer, ObjectId paused) {
+        rollupMarksCollection.replaceOne(Filters.eq("_id", CONSUMER_PREFIX + consumer),
+            new Document("_id", CONSUMER_PREFIX + consumer).append("seen", new Date()).append("paused", paused),
+            new ReplaceOptions().upsert(true));
+    }
+
+    public void removeConsumer(String consumer) {
+        rollupMarksCollection.deleteOne(Filters.eq("_id", CONSUMER_PREFIX + consumer));
+    }
+
+    /**
+     * @return the consumers seen within the last staleMillis that have not yet reported pausing
+     *         for the rebuild
+     */
+    public List<String> getConsumersNotPausedFor(ObjectId claim, long staleMillis) {
+        List<String> running = new ArrayList<>();
+        for (Document consumer : rollupMarksCollection.find(Filters.and(
+                Filters.regex("_id", "^" + CONSUMER_PREFIX),
+                Filters.gte("seen", new Date(System.currentTimeMillis() - staleMillis)),
+                Filters.ne("paused", claim)))) {
+            running.add(consumer.getString("_id").substring(CONSUMER_PREFIX.length()));
+        }
+        return running;
+    }
+
+    private void addToRollup(MongoCollection<Document> rollup, Iterable<Document> groups, Function<Object, Bson> filter) {
+        List<WriteModel<Document>> updates = new ArrayList<>(BULK_BATCH_SIZE);
+        for (Document group : groups) {
+            updates.add(new UpdateOneModel<>(filter.apply(group.get("_id")),
+                new Document("$inc", new Document("shares", group.get("shares"))
+                    .append("notional", group.get("notional"))
+                    .append("commission", group.get("commission"))
+                    .append("trades", group.get("trades"))), UPSERT));
+            if (updates.size() == BULK_BATCH_SIZE) {
+                rollup.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+                updates.clear();
+            }
+        }
+        if (!updates.isEmpty()) {
+            rollup.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        }
+    }
+
+    private static void addOffsets(Iterable<Document> groups, Document offsets) {
+        for (Document group : groups) {
+            String key = sourceKey(new Document(group.get("_id", Document.class)).append("offset", group.get("offset")));
+            if (key != null) {
+                offsets.merge(key, ((Number) group.get("offset")).longValue(), (a, b) -> Math.max((Long) a, (Long) b));
+            }
+        }
+    }
+
+    // the _id is assigned here rather than by the driver so that bucketed trades get one too
+    private Document toDocument(StockPurchase sp, String topic, ObjectId id) {
+        return new Document("_id", id)
+                .append("topic", topic)
+                .append("id", sp.getId())
+                .append("owner", sp.getOwner())
+                .append("symbol", sp.getSymbol())
+                .append("shares", sp.getShares())
+                .append("price", sp.getPrice())
+                .append("notional", sp.getPrice() * sp.getShares())
+                .append("when", when(sp.getWhen()))
+                .append("commission", sp.getCommission());
+    }
+
+    // stored as a BSON date so it can be range-scanned; a value in an unrecognized form is kept
+    // as the original string rather than losing the trade
+    private static Object when(String when) {
+        Date date = Timestamps.parse(when);
+        return date != null ? date : when;
     }
 
+    /**
+     * Converts "when" from a string to a date on trades written before it was stored as one.
+     * Works through them in batches and can run in the background alongside ingestion; it is safe
+     * to rerun, and values that cannot be parsed are left alone and counted. The trades are found
+     * through a partial index holding only string times, so once they are converted a rerun reads
+     * next to nothing; run {@link #ensureIndexes()} first. Set MONGO_MIGRATE_WHEN=false to skip it.
+     * @return number of trades converted
+     */
+    public long migrateWhenToDates() {
+        if ("false".equalsIgnoreCase(System.getenv("MONGO_MIGRATE_WHEN"))) {
+            logger.info("Trade timestamp migration disabled by MONGO_MIGRATE_WHEN");
+            return 0;
+        }
+        long converted = 0, unparseable = 0;
+        List<WriteModel<Document>> updates = new ArrayList<>(BULK_BATCH_SIZE);
+        Set<String> owners = new HashSet<>();
+        try (MongoCursor<Document> cursor = tradesCollection.find(Filters.type("when", BsonType.STRING))
+                .projection(Projections.include("when", "owner"))
+                .batchSize(BULK_BATCH_SIZE)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                String when = doc.getString("when");
+                Date date = Timestamps.parse(when);
+                if (date == null) {
+                    unparseable++;
+                    continue;
+                }
+                // matching the old value as well leaves a trade alone if it changed meanwhile
+                updates.add(new UpdateOneModel<>(Filters.and(Filters.eq("_id", doc.get("_id")), Filters.eq("when", when)),
+                    Updates.set("when", date)));
+                owners.add(doc.getString("owner"));
+                if (updates.size() == BULK_BATCH_SIZE) {
+                    converted += convertWhen(updates, owners);
+                }
+            }
+        }
+        if (!updates.isEmpty()) {
+            converted += convertWhen(updates, owners);
+        }
+        if (converted > 0 || unparseable > 0) {
+            logger.info(String.format("Converted 'when' to a date on %d trades, %d could not be parsed", converted, unparseable));
+        }
+        return converted;
+    }
+
+    // the converted trades read back differently, so their owners' versions move on
+    private long convertWhen(List<WriteModel<Document>> updates, Set<String> owners) {
+        long converted = tradesCollection.bulkWrite(updates, new BulkWriteOptions().ordered(false)).getModifiedCount();
+        ownerTotalsCollection.updateMany(Filters.in("_id", owners), Updates.combine(Updates.inc("version", 1L),
+            Updates.currentDate("modified")));
+        updates.clear();
+        owners.clear();
+        return converted;
+    }
+
+    /**
+     * Reads the owner's version from its totals, with one point read by _id, as the aggregates are
+     * read. It changes whenever the owner's trades, positions or totals do, whichever process wrote
+     * them. Reads passed the version are made after it, never older than it.
+     */
+    public OwnerVersion getOwnerVersion(String ownerName) {
+        Bson filter = Filters.eq("_id", ownerName);
+        Bson fields = Projections.include("epoch", "version", "modified");
+        if (!causalReads) {
+            return new OwnerVersion(ownerTotalReads.find(filter).projection(fields).first());
+        }
+        try (ClientSession session = CausalReads.start(client)) {
+            Document totals = ownerTotalReads.find(session, filter).projection(fields).first();
+            return new OwnerVersion(totals, session.getOperationTime(), session.getClusterTime());
+        }
+    }
+
+    /**
+     * Loads the most recent trades into the in-memory buffer behind {@link #getLatestTrades(int)}.
+     * Call once at startup, before ingestion begins.
+     */
+    public void seedRecentTrades() {
+        List<Document> latest = queryLatestTrades(recentTrades.getCapacity());
+        recentTrades.seed(latest);
+        logger.info("Seeded " + latest.size() + " recent trades");
+    }
+
+    /**
+     * Serves the latest trades from memory, which only holds the trades seeded at startup and
+     * those written through this connector since: trades other pods write after this one started
+     * are not among them.
+     * @param count - number of trades wanted, capped at the buffer size
+     * @return the most recent trades, newest first
+     */
+    public List<Document> getLatestTrades(int count) {
+        int n = Math.max(0, Math.min(count, recentTrades.getCapacity()));
+        List<Document> latest = recentTrades.latest(n);
+        if (latest.size() < n) {
+            // not seeded yet, or fewer trades held than asked for; _id order is indexed, so this is cheap
+            return queryLatestTrades(n);
+        }
+        return latest;
+    }
+
+    private List<Document> queryLatestTrades(int count) {
+        if (count == 0) {
+            return new ArrayList<>();
+        }
+        List<Document> latest = tradesCollection.find().sort(Sorts.descending("_id")).limit(count).into(new ArrayList<>());
+        if (tradeBuckets != null) {
+            latest.addAll(tradeBuckets.latest(count));
+            latest.sort((a, b) -> b.getObjectId("_id").compareTo(a.getObjectId("_id")));
+            latest = new ArrayList<>(latest.subList(0, Math.min(count, latest.size())));
+        }
+        return latest;
+    }
+
+    public JSONObject getTrades(String ownerName) {
+        return getTradesForSymbol(ownerName, null);
+    }
+
+    /**
+     * @param symbol - only trades for this symbol, or null for all
+     */
     public JSONObject getTradesForSymbol(String ownerName, String symbol) {
-        FindIterable<Document> docs = tradesCollection.find(Filters.and(Filters.eq("owner", ownerName), Filters.eq("symbol", symbol)));
+        List<Document> docs = new ArrayList<>();
+        try (MergedCursor cursor = openTrades(ownerName, symbol, null, null, null, 0, null, false, null)) {
+            while (cursor.hasNext()) {
+                docs.add(cursor.next().decode(DOCUMENT_CODEC));
+            }
+        }
         return docsToJsonObject(docs, "transactions");
     }
 
-    private MongoIterable<Document> getSharesCount(String ownerName, String symbol) {
-        MapReduceIterable<Document> docs = tradesCollection.mapReduce("function() { emit( this.symbol, this.shares); }", 
-                                                                        "function(key, values) { return Array.sum(values) }")
-                                            .filter(Filters.and(Filters.eq("owner", ownerName), Filters.eq("symbol", symbol)));
+    /**
+     * @return up to {@code limit} of the owner's trades after the one given, or from the first if
+     *         none is, in _id order and read from the primary
+     */
+    public List<Document> getTradesAfter(String ownerName, ObjectId after, int limit) {
+        List<Document> docs = new ArrayList<>();
+        try (MergedCursor cursor = openTrades(ownerName, null, after, null, null, limit, null, true, null)) {
+            while (cursor.hasNext()) {
+                docs.add(cursor.next().decode(DOCUMENT_CODEC));
+            }
+        }
         return docs;
     }
 
+    /**
+     * @return the _id of the owner's latest trade, read from the primary, or null if there are none
+     */
+    public ObjectId getLastTradeId(String ownerName) {
+        Document last = primaryReads.find(Filters.eq("owner", ownerName))
+            .sort(Sorts.descending("_id"))
+            .projection(Projections.include("_id"))
+            .first();
+        ObjectId lastId = last == null ? null : last.getObjectId("_id");
+        ObjectId lastBucketed = primaryBuckets == null ? null : primaryBuckets.lastId(ownerName);
+        if (lastId == null || lastBucketed != null && lastBucketed.compareTo(lastId) > 0) {
+            lastId = lastBucketed;
+        }
+        return lastId;
+    }
+
+    /**
+     * Reads how many trades each owner has from the owner totals on the primary, with one query
+     * for all of them. Each trade is counted once it is written, whichever process wrote it.
+     * @return the count per owner; owners without trades are left out
+     */
+    public Map<String, Long> getTradeCounts(Collection<String> ownerNames) {
+        Map<String, Long> counts = new HashMap<>();
+        for (Document total : ownerTotalsCollection.withReadPreference(ReadPreference.primary())
+                .find(Filters.in("_id", ownerNames))
+                .projection(Projections.include("trades"))) {
+            counts.put(total.getString("_id"), (long) number(total, "trades"));
+        }
+        return counts;
+    }
+
+    /**
+     * Streams an owner's trades to the writer, straight from the cursor, as
+     * { "transactions": [...], "next": "..." }. Trades come in _id order, or for a time range in
+     * time order and then _id order. "next" is only written when the page is full and is the
+     * cursor to pass as {@code after} for the following page. Documents are read as raw BSON and
+     * copied to the writer without being decoded. Trades are read as trade history lists are
+     * configured to be, but never older than the owner's version given.
+     * @param symbol - only trades for this symbol, or null for all
+     * @param after - only trades after this one, or null to start from the first
+     * @param from - only trades at or after this time, or null
+     * @param to - only trades before this time, or null
+     * @param limit - page size, or 0 for every trade
+     * @param fields - trade fields to return, or null for all; _id is added when paging
+     * @param version - the owner's version the response is tagged with, or null
+     */
+    public void writeTrades(Writer writer, String ownerName, String symbol, ObjectId after, Date from, Date to,
+            int limit, Collection<String> fields, OwnerVersion version) throws IOException {
+        Set<String> projected = null;
+        if (fields != null && !fields.isEmpty()) {
+            projected = new LinkedHashSet<>(fields);
+            if (limit > 0) {
+                projected.add("_id");
+            }
+        }
+        // the fields buckets are merged with individually stored trades on are read even when
+        // they were not asked for, and left out here
+        Set<String> omit = new HashSet<>();
+        if (projected != null && tradeBuckets != null) {
+            omit.addAll(mergeFields(from != null || to != null));
+            omit.removeAll(projected);
+        }
+
+        int count = 0;
+        RawBsonDocument last = null;
+        JsonWriter json = BsonJsonEncoder.newWriter(writer);
+        json.writeStartDocument();
+        json.writeStartArray("transactions");
+        try (ClientSession session = CausalReads.startAfter(client, version);
+                MergedCursor cursor = openTrades(ownerName, symbol, after, from, to, limit, projected, false, session)) {
+            while (cursor.hasNext()) {
+                last = cursor.next();
+                if (!omit.isEmpty()) {
+                    BsonJsonEncoder.write(json, last, omit);
+                } else {
+                    BsonJsonEncoder.write(json, last);
+                }
+                count++;
+            }
+        }
+        json.writeEndArray();
+        if (limit > 0 && count == limit) {
+            json.writeString("next", last.getObjectId("_id").getValue().toHexString());
+        }
+        json.writeEndDocument();
+        json.flush();
+        writer.flush();
+    }
+
+    private static List<String> mergeFields(boolean range) {
+        return range ? Arrays.asList("when", "_id") : Arrays.asList("_id");
+    }
+
+    /**
+     * Opens the owner's trades, from the individually stored trades and, in bucket mode, from the
+     * buckets as well. A time range is read in ("when", _id) order straight off the
+     * (owner, when, _id) index, so it is never sorted in memory; anything else in _id order.
+     * @param after - only trades after this one in that order
+     * @param projected - fields to return, or null for all
+     * @param primary - read from the primary rather than as configured for history lists
+     * @param session - the session to read in, or null
+     */
+    private MergedCursor openTrades(String ownerName, String symbol, ObjectId after, Date from, Date to,
+            int limit, Set<String> projected, boolean primary, ClientSession session) {
+        boolean range = from != null || to != null;
+        List<Bson> filters = new ArrayList<>(6);
+        List<String> equalityFields = new ArrayList<>(2);
+        filters.add(Filters.eq("owner", ownerName));
+        equalityFields.add("owner");
+        if (symbol != null) {
+            filters.add(Filters.eq("symbol", symbol));
+            equalityFields.add("symbol");
+        }
+        Date afterWhen = range && after != null ? whenOf(after, primary, session) : null;
+        if (after != null) {
+            filters.add(afterFilter(after, afterWhen));
+        }
+        if (from != null) {
+            filters.add(Filters.gte("when", from));
+        }
+        if (to != null) {
+            filters.add(Filters.lt("when", to));
+        }
+        FindIterable<RawBsonDocument> docs = CausalReads.find(
+                (primary ? primaryReads : historyReads).withDocumentClass(RawBsonDocument.class), session, Filters.and(filters))
+            .sort(Sorts.ascending(mergeFields(range)));
+        if (limit > 0) {
+            docs.limit(limit);
+        }
+        if (projected != null) {
+            Set<String> included = new LinkedHashSet<>(projected);
+            if (tradeBuckets != null) {
+                included.addAll(mergeFields(range));
+            }
+            docs.projection(included.contains("_id") ? Projections.include(new ArrayList<>(included))
+                : Projections.fields(Projections.include(new ArrayList<>(included)), Projections.excludeId()));
+        }
+        if (INDEXED_COLLECTIONS.contains(tradesCollection.getNamespace().getFullName())) {
+            if (range) {
+                // left to itself the planner can pick an _id-ordered index and walk the owner's
+                // whole history, when the range is usually a small slice of it
+                docs.hint(Indexes.ascending(OWNER_WHEN_INDEX));
+            } else if (projected != null) {
+                List<String> index = coveringIndex(equalityFields, projected);
+                if (index != null) {
+                    docs.hint(Indexes.ascending(index));
+                }
+            }
+        }
+
+        List<MongoCursor<RawBsonDocument>> cursors = new ArrayList<>(2);
+        cursors.add(docs.iterator());
+        if (tradeBuckets != null) {
+            TradeBuckets buckets = primary ? primaryBuckets : tradeBuckets;
+            cursors.add(buckets.trades(ownerName, symbol, after, afterWhen, from, to, limit, projected, session).iterator());
+        }
+        return new MergedCursor(cursors, range ? MergedCursor.BY_TIME : MergedCursor.BY_ID, limit);
+    }
+
+    /**
+     * @param afterWhen - the time of the trade {@code after}, to carry on from it in time order,
+     *        or null to carry on in _id order
+     */
+    static Bson afterFilter(ObjectId after, Date afterWhen) {
+        if (afterWhen == null) {
+            return Filters.gt("_id", after);
+        }
+        // the bound on "when" narrows the index scan; trades at the same time go by _id
+        return Filters.and(Filters.gte("when", afterWhen),
+            Filters.nor(Filters.and(Filters.eq("when", afterWhen), Filters.lte("_id", after))));
+    }
+
+    // the time of the trade a page ended on; null if it isn't a stored trade with a parsed time,
+    // in which case the page just carries on with trades after its _id
+    private Date whenOf(ObjectId id, boolean primary, ClientSession session) {
+        Document trade = CausalReads.find(primary ? primaryReads : historyReads, session, Filters.eq("_id", id))
+            .projection(Projections.include("when")).first();
+        if (trade == null && tradeBuckets != null) {
+            trade = (primary ? primaryBuckets : tradeBuckets).find(id, session);
+        }
+        return trade != null && trade.get("when") instanceof Date ? trade.getDate("when") : null;
+    }
+
+    /**
+     * Finds an index that answers an _id-ordered query with these equality filters and projection
+     * without reading any documents. Callers only hint indexes this process has seen built, since
+     * hinting one that does not exist fails the query.
+     */
+    private List<String> coveringIndex(List<String> equalityFields, Collection<String> fields) {
+        int prefix = equalityFields.size();
+        for (List<String> keys : TRADE_INDEX_KEYS) {
+            if (keys.size() > prefix
+                    && new HashSet<>(keys.subList(0, prefix)).equals(new HashSet<>(equalityFields))
+                    && keys.get(prefix).equals("_id")
+                    && keys.containsAll(fields)) {
+                return keys;
+            }
+        }
+        return null;
+    }
+
+    private MongoIterable<Document> getSharesCount(String ownerName, String symbol) {
+        return getPositions(Filters.and(Filters.eq("owner", ownerName), Filters.eq("symbol", symbol)), "shares", null);
+    }
+
     public JSONObject getSymbolShares(String ownerName, String symbol) {
         MongoIterable<Document> docs = getSharesCount(ownerName, symbol);
         JSONObject result = docsToJsonObject(docs, "shares");
@@ -170,68 +1189,51 @@ public class MongoConnector {
     }
 
     private MongoIterable<Document> getPortfolioShares(String ownerName) {
-        MapReduceIterable<Document> docs = tradesCollection.mapReduce("function() { emit( this.symbol, this.shares); }", 
-                                                                        "function(key, values) { return Array.sum(values) }")
-                                            .filter(Filters.eq("owner", ownerName));
-        return docs;
+        return getPositions(Filters.eq("owner", ownerName), "shares", null);
     }
 
     public JSONObject getPortfolioSharesJSON(String ownerName) {
         return docsToJsonObject(getPortfolioShares(ownerName), "shares") ;
     }
 
-    public MapReduceIterable<Document> getStocksNotional(String ownerName) {
-
-        MapReduceIterable<Document> docs = tradesCollection.mapReduce("function() { emit( this.symbol, this.notional); }", 
-                                                                        "function(key, values) { return Array.sum(values) }")
-                                            .filter(Filters.eq("owner", ownerName));
-        return docs;
+    public MongoIterable<Document> getStocksNotional(String ownerName) {
+        return getPositions(Filters.eq("owner", ownerName), "notional", null);
     }
 
     public Double getTotalNotional(String ownerName) {
-        MapReduceIterable<Document> docs = tradesCollection.mapReduce("function() { emit( this.owner, this.notional); }", 
-                                                                    "function(key, values) { return Array.sum(values) }")
-                                                            .filter(Filters.eq("owner", ownerName));
-        // JSONObject result = docsToJsonObject(docs, "notional");
-        // return result;
-        logger.info("Total Notional docs: " + docs);
-        if (docs != null) {
-            try {
-                Document doc = docs.first();
-                logger.info("doc: " + doc);
-               return doc.getDouble("value");
-            } catch (Exception e) {
-                logException(e);
-            }
-        }
-        return null;
+        Document totals = getOwnerTotals(ownerName);
+        return totals == null ? null : number(totals, "notional");
     }
 
     public Double getCommissionTotal(String ownerName) {
-        MapReduceIterable<Document> docs = tradesCollection.mapReduce("function() { emit( this.owner, this.commission); }", 
-                                                                    "function(key, values) { return Array.sum(values) }")
-                                                        .filter(Filters.eq("owner", ownerName));
-        logger.info("Commission Total docs: " + docs);
-        if (docs != null) {
-            try {
-                Document doc = docs.first();
-                logger.info("doc: " + doc);
-                return doc.getDouble("value");
-            } catch (Exception e) {
-                logException(e);
-            }
-        }
-        return null;
+        Document totals = getOwnerTotals(ownerName);
+        return totals == null ? null : number(totals, "commission");
     }
 
     public JSONObject getSymbolNotional(String ownerName, String symbol) {
-        MapReduceIterable<Document> docs = tradesCollection.mapReduce("function() { emit( this.symbol, this.notional); }", 
-                                                                        "function(key, values) { return Array.sum(values) }")
-                                            .filter(Filters.and(Filters.eq("owner", ownerName), Filters.eq("symbol", symbol)));
+        MongoIterable<Document> docs = getPositions(Filters.and(Filters.eq("owner", ownerName), Filters.eq("symbol", symbol)), "notional", null);
         JSONObject result = docsToJsonObject(docs, "notional");
         return result;
     }
 
+    /**
+     * Reads one running total from the matching positions, in the { _id: symbol, value: total }
+     * shape the per-symbol endpoints have always returned. Values are doubles, as they were when
+     * these were summed by map/reduce.
+     * @param session - the session to read in, or null
+     */
+    private MongoIterable<Document> getPositions(Bson filter, String field, ClientSession session) {
+        return CausalReads.find(positionReads, session, filter).map(position -> positionValue(position, field));
+    }
+
+    static Document positionValue(Document position, String field) {
+        return new Document("_id", position.getString("symbol")).append("value", number(position, field));
+    }
+
+    private Document getOwnerTotals(String ownerName) {
+        return ownerTotalReads.find(Filters.eq("_id", ownerName)).first();
+    }
+
     /**
      * 
      * @param ownerName
@@ -244,63 +1246,170 @@ public class MongoConnector {
 
         JSONArray jsonArray = new JSONArray();
 
-        MongoIterable<Document> portfolioShares = getPortfolioShares(ownerName);
+        List<Document> portfolioShares = getPortfolioShares(ownerName).into(new ArrayList<>());
+        Set<String> symbols = new LinkedHashSet<>();
         for (Document item : portfolioShares) {
-            System.out.println("portfolio item: " + item.toString());
+            symbols.add(item.get("_id").toString());
+        }
+        QuoteCache.Quotes quotes = getSymbolPrices(jwt, symbols);
 
+        for (Document item : portfolioShares) {
             String symbol = item.get("_id").toString();
             Double shares = Double.parseDouble(item.get("value").toString());
-            Double equity = getSymbolEquity(jwt, shares, symbol);
+            Quote quote = quotes.getQuotes().get(symbol);
 
             JSONObject obj = new JSONObject();
             obj.put("symbol", symbol);
-            obj.put("equity", equity);
+            obj.put("equity", quote == null ? JSONObject.NULL : quote.getPrice() * shares);
 
             jsonArray.put(obj);
         }
         JSONObject result = new JSONObject().put("portfolio", jsonArray);
+        if (!quotes.isComplete()) {
+            // equity is null for these; the rest of the portfolio is still priced
+            result.put("unpriced", new JSONArray(quotes.getUnavailable()));
+        }
+        if (!quotes.getStale().isEmpty()) {
+            // priced with the last quote that could be had, as it couldn't be refreshed
+            result.put("stale", new JSONArray(quotes.getStale()));
+        }
         return result;
     }
 
-    private Double getSymbolPrice(String jwt, String symbol) {
-        Quote quote = new Quote();
-        try {
-            quote = stockQuoteClient.getStockQuote(jwt, symbol);
-        } catch (Exception e) {
-            logException(e);
+    /**
+     * Prices every symbol through the shared quote cache, which fetches whatever it doesn't
+     * already hold concurrently and waits no longer than its deadline for them.
+     * @return the quotes found, the symbols that couldn't be priced in time and those priced
+     * with an expired quote
+     */
+    private QuoteCache.Quotes getSymbolPrices(String jwt, Set<String> symbols) {
+        if (quoteCache == null) {
+            return new QuoteCache.Quotes(new HashMap<>(), symbols);
         }
-        Double price = quote.getPrice();
-        return price;
+        return quoteCache.getQuotes(jwt, symbols);
+    }
+
+    // null if no quote could be had within the quote deadline
+    private Double getSymbolPrice(String jwt, String symbol) {
+        Quote quote = quoteCache == null ? null : quoteCache.getQuote(jwt, symbol);
+        return quote == null ? null : quote.getPrice();
     }
 
 	private Double getSymbolEquity(String jwt, Double shares, String symbol) {
         Double price = getSymbolPrice(jwt, symbol);
-        Double equity = price * shares;
-        return equity;
+        return price == null ? null : price * shares;
     }
 
     public Double getSymbolEquity(String jwt, String owner, String symbol) {
         Document doc = getSharesCount(owner, symbol).first(); //getSymbolShares(owner, symbol).get("shares");
-        Double shares = doc.getDouble("value");
+        Double shares = doc == null ? 0.0 : doc.getDouble("value");
         return getSymbolEquity(jwt, shares, symbol);
     }
 
     /**
-     * 
+     * Values the owner's positions in one pass over them, from one positions read and one quote
+     * lookup. A total priced fully from current quotes is cached per owner for TOTAL_EQUITY_TTL_MS,
+     * and only served while the owner's version is still the one it was computed at, so it is
+     * never served once the owner's trades have changed, whichever pod wrote them.
      * @param ownerName
-     * @return total value of equity (no symbol breakdown)
+     * @param jwt - the caller's Authorization header, passed on to the quote service
+     * @return total value of equity (no symbol breakdown), any symbols that couldn't be priced
+     * and so are left out of it under "unpriced", and any priced with an expired quote under "stale"
      */
-    public JSONObject getTotalEquity(String ownerName, HttpServletRequest request) {
-        //TODO: getPortfolioEquity and reduce value
-        JSONArray portfolioEquity = getPortfolioEquity(ownerName, request).getJSONArray("portfolio");
-        for (Object obj : portfolioEquity) {
-            
+    public JSONObject getTotalEquity(String ownerName, String jwt) {
+        long now = System.currentTimeMillis();
+        // read before the positions, and the positions no older than it, so a total is never kept
+        // under a version newer than it
+        OwnerVersion ownerVersion = TOTAL_EQUITY_TTL_MS > 0 ? getOwnerVersion(ownerName) : null;
+        String version = ownerVersion == null ? null : ownerVersion.getTag();
+        TotalEquity cached = totalEquities.get(ownerName);
+        if (cached != null && now - cached.computed < TOTAL_EQUITY_TTL_MS && cached.version.equals(version)) {
+            return new JSONObject(cached.json);
         }
 
-        JSONObject result = new JSONObject();
+        List<Document> portfolioShares;
+        try (ClientSession session = CausalReads.startAfter(client, ownerVersion)) {
+            portfolioShares = getPositions(Filters.eq("owner", ownerName), "shares", session).into(new ArrayList<>());
+        }
+        Set<String> symbols = new LinkedHashSet<>();
+        for (Document item : portfolioShares) {
+            symbols.add(item.get("_id").toString());
+        }
+        QuoteCache.Quotes quotes = getSymbolPrices(jwt, symbols);
+
+        double equity = 0.0;
+        for (Document item : portfolioShares) {
+            Quote quote = quotes.getQuotes().get(item.get("_id").toString());
+            if (quote != null) {
+                equity += quote.getPrice() * Double.parseDouble(item.get("value").toString());
+            }
+        }
+        JSONObject result = new JSONObject()
+            .put("owner", ownerName)
+            .put("equity", equity)
+            .put("symbols", symbols.size());
+        if (!quotes.isComplete()) {
+            result.put("unpriced", new JSONArray(quotes.getUnavailable()));
+        }
+        if (!quotes.getStale().isEmpty()) {
+            result.put("stale", new JSONArray(quotes.getStale()));
+        }
+        if (version != null && quotes.isComplete() && quotes.getStale().isEmpty()) {
+            if (totalEquities.size() >= TOTAL_EQUITY_CACHE_SIZE) {
+                evictTotalEquities(now);
+            }
+            totalEquities.put(ownerName, new TotalEquity(result.toString(), now, version));
+        }
         return result;
     }
 
+    // drops expired totals, then arbitrary ones until there is room for another
+    private void evictTotalEquities(long now) {
+        totalEquities.values().removeIf(total -> now - total.computed >= TOTAL_EQUITY_TTL_MS);
+        Iterator<String> owners = totalEquities.keySet().iterator();
+        while (totalEquities.size() >= TOTAL_EQUITY_CACHE_SIZE && owners.hasNext()) {
+            owners.next();
+            owners.remove();
+        }
+    }
+
+    private static class TotalEquity {
+        final String json;
+        final long computed;
+        final String version;
+
+        TotalEquity(String json, long computed, String version) {
+            this.json = json;
+            this.computed = computed;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Totals all of an owner's trades, read from the running owner totals.
+     * @param ownerName - String containing owner name
+     * @return JSONObject with the owner's total notional, commission, shares and number of trades
+     */
+    public JSONObject getTradeSummary(String ownerName) {
+        return tradeSummary(ownerName, getOwnerTotals(ownerName));
+    }
+
+    static JSONObject tradeSummary(String ownerName, Document summary) {
+        return new JSONObject()
+            .put("owner", ownerName)
+            .put("notional", number(summary, "notional"))
+            .put("commission", number(summary, "commission"))
+            .put("shares", number(summary, "shares"))
+            .put("trades", (long) number(summary, "trades"));
+    }
+
+    static double number(Document doc, String key) {
+        if (doc == null || !(doc.get(key) instanceof Number)) {
+            return 0.0;
+        }
+        return ((Number) doc.get(key)).doubleValue();
+    }
+
     /**
      * 
      * @param ownerName - String containing owner name
@@ -311,14 +1420,14 @@ public class MongoConnector {
         
         logger.info("Getting ROI for "+ownerName+" in Mongo Connector");
         
-        //handle NaN and null value
-        Double notional = getTotalNotional(ownerName);
-        if (notional == null)
-            notional = new Double(0.0);
+        //notional and commissions come from the owner's running totals
+        return roi(getOwnerTotals(ownerName), equity);
+    }
+
+    static String roi(Document summary, Double equity) {
+        Double notional = number(summary, "notional");
         logger.info("Total Notional: " + notional);
-        Double commissions = getCommissionTotal(ownerName);
-        if (commissions == null)
-            commissions = new Double(0.0);
+        Double commissions = number(summary, "commission");
         logger.info("Commission Total: " + commissions);
         
         Double profits = new Double(0.0);
@@ -336,23 +1445,27 @@ public class MongoConnector {
         return String.format("%.2f", roi);
     }
 
-    private JSONObject docsToJsonObject(MongoIterable<Document> docs, String label) {
+    static JSONObject docsToJsonObject(Iterable<Document> docs, String label) {
         JSONArray jsonArray = new JSONArray();
         JSONObject json = new JSONObject();
         for (Document doc : docs) {
-            JSONObject obj = new JSONObject();
-
-            Set<String> keys = doc.keySet();
-            for (String key : keys) {
-                obj.put(key, doc.get(key).toString());
-            }
-
-            jsonArray.put(obj);
+            jsonArray.put(docToJsonObject(doc));
         }
 
         json.put(label, jsonArray);
         return json;
     }
+
+    private static JSONObject docToJsonObject(Document doc) {
+        JSONObject obj = new JSONObject();
+
+        Set<String> keys = doc.keySet();
+        for (String key : keys) {
+            Object value = doc.get(key);
+            obj.put(key, value instanceof Date ? ((Date) value).toInstant().toString() : value.toString());
+        }
+        return obj;
+    }
     
  	private static void logException(Throwable t) {
 		logger.warning(t.getClass().getName()+": "+t.getMessage());
@@ -0,0 +1,56 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+//Logging (JSR 47)
+import java.util.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.Config;
+
+/**
+ * The application's {@link ReadSettings}, read from MicroProfile Config when the bean is created:
+ * TRADE_HISTORY_* for trade history lists and TRADE_AGGREGATES_* for positions, totals and other
+ * rolled up values. A setting that is not valid fails the bean, and with it the application,
+ * with an IllegalArgumentException that names it. Reads behind responses tagged with the owner's
+ * version are made as configured too, but never older than that version, see {@link CausalReads}.
+ */
+@ApplicationScoped
+public class MongoReadSettings {
+
+    private static Logger logger = Logger.getLogger(MongoReadSettings.class.getName());
+
+    private ReadSettings history;
+    private ReadSettings aggregates;
+
+    // only for the proxy CDI puts in front of the application scoped instance
+    protected MongoReadSettings() {
+    }
+
+    @Inject
+    public MongoReadSettings(Config config) {
+        history = ReadSettings.fromConfig(config, "TRADE_HISTORY");
+        aggregates = ReadSettings.fromConfig(config, "TRADE_AGGREGATES");
+        logger.info("Reads for " + history + "; " + aggregates);
+    }
+
+    public ReadSettings getHistory() {
+        return history;
+    }
+
+    public ReadSettings getAggregates() {
+        return aggregates;
+    }
+}
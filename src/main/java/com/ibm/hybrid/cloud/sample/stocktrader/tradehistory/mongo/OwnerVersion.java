@@ -0,0 +1,80 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import java.util.Date;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * An owner's version as stored on its owner totals. The version is incremented by every write of
+ * the owner's trades, whichever process makes it, and by the bulk rewrites of stored data. A
+ * rebuild replaces the totals and stamps them with a new epoch, so a version counted before a
+ * rebuild never matches one counted after it.
+ *
+ * A version read in a session also carries that session's operation and cluster times, so the
+ * data tagged with it can be read no older than it, see {@link CausalReads}.
+ */
+public class OwnerVersion {
+
+    private final String tag;
+    private final Date lastModified;
+    private final BsonTimestamp operationTime;
+    private final BsonDocument clusterTime;
+
+    OwnerVersion(Document totals) {
+        this(totals, null, null);
+    }
+
+    OwnerVersion(Document totals, BsonTimestamp operationTime, BsonDocument clusterTime) {
+        this.operationTime = operationTime;
+        this.clusterTime = clusterTime;
+        if (totals == null) {
+            // no trades yet
+            tag = "0";
+            lastModified = null;
+        } else {
+            Object epoch = totals.get("epoch");
+            Object version = totals.get("version");
+            tag = (epoch instanceof ObjectId ? ((ObjectId) epoch).toHexString() : "0") + "-"
+                + (version instanceof Number ? ((Number) version).longValue() : 0);
+            lastModified = totals.get("modified") instanceof Date ? totals.getDate("modified") : null;
+        }
+    }
+
+    /**
+     * @return the version, as an entity tag value
+     */
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * @return when the owner's data last changed, in whole seconds, or null if not known
+     */
+    public Date getLastModified() {
+        // HTTP dates carry whole seconds, so compare in whole seconds too
+        return lastModified == null ? null : new Date(lastModified.getTime() / 1000 * 1000);
+    }
+
+    BsonTimestamp getOperationTime() {
+        return operationTime;
+    }
+
+    BsonDocument getClusterTime() {
+        return clusterTime;
+    }
+}
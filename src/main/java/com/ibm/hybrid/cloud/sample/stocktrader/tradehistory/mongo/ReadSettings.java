@@ -0,0 +1,151 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadConcernLevel;
+import com.mongodb.ReadPreference;
+import com.mongodb.Tag;
+import com.mongodb.TagSet;
+import com.mongodb.client.MongoCollection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.microprofile.config.Config;
+
+/**
+ * Read preference and read concern for one class of query, configured under a common prefix:
+ *
+ *   <prefix>_READ_PREFERENCE   primary (default), primaryPreferred, secondary, secondaryPreferred or nearest
+ *   <prefix>_MAX_STALENESS_S   how far behind the primary a secondary may be, at least 90 seconds
+ *   <prefix>_READ_TAGS         tag sets in order of preference, e.g. "dc:east,use:reporting;dc:east"
+ *   <prefix>_READ_CONCERN      local, available, majority or linearizable; the server default if not set
+ *
+ * The application's settings come from {@link MongoReadSettings}.
+ */
+public class ReadSettings {
+
+    /** reads from the primary at the server's default read concern */
+    public static final ReadSettings PRIMARY = new ReadSettings("primary", ReadPreference.primary(), ReadConcern.DEFAULT);
+
+    private static final long MIN_STALENESS_S = 90;
+
+    private final String name;
+    private final ReadPreference readPreference;
+    private final ReadConcern readConcern;
+
+    public ReadSettings(String name, ReadPreference readPreference, ReadConcern readConcern) {
+        this.name = name;
+        this.readPreference = readPreference;
+        this.readConcern = readConcern;
+    }
+
+    /**
+     * @throws IllegalArgumentException naming the setting, if any of them is not valid
+     */
+    public static ReadSettings fromConfig(Config config, String prefix) {
+        String mode = value(config, prefix + "_READ_PREFERENCE");
+        String staleness = value(config, prefix + "_MAX_STALENESS_S");
+        String tags = value(config, prefix + "_READ_TAGS");
+        String level = value(config, prefix + "_READ_CONCERN");
+
+        ReadPreference readPreference = ReadPreference.primary();
+        if (mode != null) {
+            List<TagSet> tagSets = parseTagSets(prefix + "_READ_TAGS", tags);
+            Long seconds = staleness == null ? null : parseStaleness(prefix + "_MAX_STALENESS_S", staleness);
+            try {
+                readPreference = seconds == null
+                    ? ReadPreference.valueOf(mode, tagSets)
+                    : ReadPreference.valueOf(mode, tagSets, seconds, TimeUnit.SECONDS);
+            } catch (IllegalArgumentException e) {
+                // unknown modes, and tags or staleness given with primary
+                throw new IllegalArgumentException(String.format("%s_READ_PREFERENCE %s is not valid with tags %s and staleness %s: %s",
+                    prefix, mode, tags, staleness, e.getMessage()), e);
+            }
+        } else if (staleness != null || tags != null) {
+            throw new IllegalArgumentException(prefix + "_MAX_STALENESS_S and " + prefix + "_READ_TAGS need a " + prefix + "_READ_PREFERENCE other than primary");
+        }
+
+        ReadConcern readConcern = ReadConcern.DEFAULT;
+        if (level != null) {
+            try {
+                readConcern = new ReadConcern(ReadConcernLevel.fromString(level));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(prefix + "_READ_CONCERN must be local, available, majority or linearizable, was " + level, e);
+            }
+        }
+        return new ReadSettings(prefix, readPreference, readConcern);
+    }
+
+    private static long parseStaleness(String setting, String staleness) {
+        long seconds;
+        try {
+            seconds = Long.parseLong(staleness);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(setting + " must be a number of seconds, was " + staleness);
+        }
+        if (seconds < MIN_STALENESS_S) {
+            throw new IllegalArgumentException(setting + " must be at least " + MIN_STALENESS_S + ", was " + staleness);
+        }
+        return seconds;
+    }
+
+    private static String value(Config config, String name) {
+        return config.getOptionalValue(name, String.class)
+            .map(String::trim)
+            .filter(value -> !value.isEmpty())
+            .orElse(null);
+    }
+
+    private static List<TagSet> parseTagSets(String setting, String tags) {
+        List<TagSet> tagSets = new ArrayList<>();
+        if (tags == null) {
+            return tagSets;
+        }
+        for (String set : tags.split(";")) {
+            List<Tag> tagList = new ArrayList<>();
+            for (String tag : set.split(",")) {
+                String[] pair = tag.split(":", 2);
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException(setting + " must hold name:value pairs, was " + tag);
+                }
+                tagList.add(new Tag(pair[0].trim(), pair[1].trim()));
+            }
+            tagSets.add(new TagSet(tagList));
+        }
+        return tagSets;
+    }
+
+    public ReadPreference getReadPreference() {
+        return readPreference;
+    }
+
+    public ReadConcern getReadConcern() {
+        return readConcern;
+    }
+
+    public boolean isPrimary() {
+        return readPreference.equals(ReadPreference.primary());
+    }
+
+    public <T> MongoCollection<T> apply(MongoCollection<T> collection) {
+        return collection.withReadPreference(readPreference).withReadConcern(readConcern);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + readPreference + ", read concern " + (readConcern.isServerDefault() ? "default" : readConcern.getLevel());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+
+/**
+ * Fixed-size ring buffer of the most recently written trades, newest first.
+ */
+public class RecentTrades {
+
+    private final Document[] trades;
+    private int newest = -1;
+    private int size = 0;
+
+    public RecentTrades(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, was " + capacity);
+        }
+        trades = new Document[capacity];
+    }
+
+    public int getCapacity() {
+        return trades.length;
+    }
+
+    public synchronized void add(Document trade) {
+        newest = (newest + 1) % trades.length;
+        trades[newest] = trade;
+        if (size < trades.length) {
+            size++;
+        }
+    }
+
+    public synchronized void addAll(List<Document> newTrades) {
+        for (Document trade : newTrades) {
+            add(trade);
+        }
+    }
+
+    /**
+     * Fills any free slots behind the current entries with older trades, so seeding after some
+     * trades have already been added never puts the seeded ones in front of them.
+     * @param olderTrades - trades ordered newest first
+     */
+    public synchronized void seed(List<Document> olderTrades) {
+        for (Document trade : olderTrades) {
+            if (size == trades.length) {
+                return;
+            }
+            if (size == 0) {
+                add(trade);
+            } else {
+                int oldest = Math.floorMod(newest - size, trades.length);
+                trades[oldest] = trade;
+                size++;
+            }
+        }
+    }
+
+    /**
+     * @return up to {@code count} trades, newest first
+     */
+    public synchronized List<Document> latest(int count) {
+        int n = Math.min(count, size);
+        List<Document> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(trades[Math.floorMod(newest - i, trades.length)]);
+        }
+        return result;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+}
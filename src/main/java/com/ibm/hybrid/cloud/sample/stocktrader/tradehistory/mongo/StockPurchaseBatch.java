@@ -0,0 +1,109 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects stock purchases until either the configured batch size is reached
+ * or the oldest purchase has waited longer than the linger time, so they can
+ * be written to Mongo with a single bulk insert.
+ */
+public class StockPurchaseBatch {
+
+    private final int maxSize;
+    private final long lingerMillis;
+
+    private final List<StockPurchase> purchases;
+    private final List<TradeSource> sources;
+    private long firstAddedAt;
+
+    public StockPurchaseBatch(int maxSize, long lingerMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, was " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.purchases = new ArrayList<>(maxSize);
+        this.sources = new ArrayList<>(maxSize);
+    }
+
+    public void add(StockPurchase sp, TradeSource source) {
+        if (purchases.isEmpty()) {
+            firstAddedAt = System.currentTimeMillis();
+        }
+        purchases.add(sp);
+        sources.add(source);
+    }
+
+    public List<StockPurchase> getPurchases() {
+        return purchases;
+    }
+
+    /**
+     * @return the record each purchase was consumed from, in the same order as the purchases
+     */
+    public List<TradeSource> getSources() {
+        return sources;
+    }
+
+    public int size() {
+        return purchases.size();
+    }
+
+    public boolean isEmpty() {
+        return purchases.isEmpty();
+    }
+
+    /**
+     * @return true once the batch is full or its oldest entry has lingered long enough
+     */
+    public boolean isReady() {
+        return purchases.size() >= maxSize || (!purchases.isEmpty() && remainingLinger() == 0);
+    }
+
+    /**
+     * @return milliseconds left before the oldest entry exceeds the linger time,
+     *         or the full linger time if the batch is empty
+     */
+    public long remainingLinger() {
+        if (purchases.isEmpty()) {
+            return lingerMillis;
+        }
+        long waited = System.currentTimeMillis() - firstAddedAt;
+        return Math.max(0, lingerMillis - waited);
+    }
+
+    /**
+     * Splits the batch into {@code count} batches by a hash of the owner, keeping each owner's
+     * purchases together and in their original order.
+     */
+    public List<StockPurchaseBatch> partitionByOwner(int count) {
+        List<StockPurchaseBatch> partitions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            partitions.add(new StockPurchaseBatch(Math.max(1, purchases.size() / count), 0));
+        }
+        for (int i = 0; i < purchases.size(); i++) {
+            StockPurchase sp = purchases.get(i);
+            int partition = (sp.getOwner().hashCode() & Integer.MAX_VALUE) % count;
+            partitions.get(partition).add(sp, sources.get(i));
+        }
+        return partitions;
+    }
+
+    public void clear() {
+        purchases.clear();
+        sources.clear();
+    }
+}
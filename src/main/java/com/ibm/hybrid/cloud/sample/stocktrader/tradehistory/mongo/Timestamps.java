@@ -0,0 +1,80 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Parses the free-form "when" strings trades arrive with into instants. Accepts ISO-8601 dates and
+ * date-times, with 'T' or a space between them and an optional offset, the java.util.Date
+ * toString() form, and epoch milliseconds. Values without an offset are taken as UTC.
+ */
+public class Timestamps {
+
+    private static final DateTimeFormatter ISO = new DateTimeFormatterBuilder()
+        .append(DateTimeFormatter.ISO_LOCAL_DATE)
+        .optionalStart()
+            .optionalStart().appendLiteral('T').optionalEnd()
+            .optionalStart().appendLiteral(' ').optionalEnd()
+            .append(DateTimeFormatter.ISO_LOCAL_TIME)
+            .optionalStart().appendOffsetId().optionalEnd()
+        .optionalEnd()
+        .toFormatter(Locale.ROOT);
+
+    private static final DateTimeFormatter DATE_TO_STRING =
+        DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+
+    private Timestamps() {
+    }
+
+    /**
+     * @return the instant the value represents, or null if it is not in a recognized form
+     */
+    public static Date parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        String text = value.trim();
+        if (text.isEmpty()) {
+            return null;
+        }
+        try {
+            if (text.chars().allMatch(Character::isDigit)) {
+                return new Date(Long.parseLong(text));
+            }
+            if (Character.isDigit(text.charAt(0))) {
+                TemporalAccessor parsed = ISO.parseBest(text, OffsetDateTime::from, LocalDateTime::from, LocalDate::from);
+                if (parsed instanceof OffsetDateTime) {
+                    return Date.from(((OffsetDateTime) parsed).toInstant());
+                }
+                if (parsed instanceof LocalDateTime) {
+                    return Date.from(((LocalDateTime) parsed).toInstant(ZoneOffset.UTC));
+                }
+                return Date.from(((LocalDate) parsed).atStartOfDay(ZoneOffset.UTC).toInstant());
+            }
+            return Date.from(ZonedDateTime.parse(text, DATE_TO_STRING).toInstant());
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
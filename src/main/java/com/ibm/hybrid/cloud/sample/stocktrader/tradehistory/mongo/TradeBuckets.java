@@ -0,0 +1,379 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import com.mongodb.WriteConcern;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores trades in bucket documents, one per owner per hour or day, instead of one document per
+ * trade. A bucket holds up to TRADE_BUCKET_MAX_TRADES trades (default 1000) and a running count
+ * and sums of shares, notional and commission; a busy period simply gets several buckets.
+ * Buckets carry the range of trade _ids they hold so keyset pages only open the buckets they
+ * need, and reads unwind them back into trades shaped exactly as the per-trade documents are.
+ *
+ * { "owner": "John", "start": date, "end": date, "count": 2, "firstId": id, "lastId": id,
+ *   "symbols": ["IBM"], "sums": { "shares": 3, "notional": 360.0, "commission": 0.0 },
+ *   "trades": [ { "_id": id, "topic": ..., "owner": "John", "symbol": "IBM", ... }, ... ] }
+ */
+public class TradeBuckets {
+
+    public static final String COLLECTION_SUFFIX = "_buckets";
+
+    private static final List<IndexModel> INDEXES = Arrays.asList(
+        new IndexModel(Indexes.ascending("owner", "start"), new IndexOptions().background(true)),
+        new IndexModel(Indexes.ascending("owner", "lastId"), new IndexOptions().background(true)),
+        new IndexModel(Indexes.ascending("owner", "firstId", "lastId"), new IndexOptions().background(true)),
+        new IndexModel(Indexes.descending("lastId"), new IndexOptions().background(true)),
+        new IndexModel(Indexes.ascending("trades._id"), new IndexOptions().background(true)));
+
+    private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+
+    private final MongoCollection<Document> buckets;
+    private final MongoCollection<Document> historyReads;
+    private final long spanMillis;
+    private final int maxTrades;
+
+    /**
+     * @param span - "hour" or "day"
+     * @param maxTrades - the most trades a bucket holds
+     * @param historyReads - how trade history lists are read
+     */
+    public TradeBuckets(MongoCollection<Document> buckets, String span, int maxTrades, ReadSettings historyReads) {
+        if (maxTrades < 1) {
+            throw new IllegalArgumentException("A bucket must hold at least 1 trade, was " + maxTrades);
+        }
+        this.buckets = buckets;
+        this.maxTrades = maxTrades;
+        this.historyReads = historyReads.apply(buckets);
+        if ("hour".equalsIgnoreCase(span)) {
+            spanMillis = TimeUnit.HOURS.toMillis(1);
+        } else if (span == null || "day".equalsIgnoreCase(span)) {
+            spanMillis = TimeUnit.DAYS.toMillis(1);
+        } else {
+            throw new IllegalArgumentException("Bucket span must be hour or day, was " + span);
+        }
+    }
+
+    public MongoCollection<Document> getCollection() {
+        return buckets;
+    }
+
+    public void ensureIndexes() {
+        buckets.createIndexes(INDEXES);
+    }
+
+    /**
+     * Appends trades to their owner's bucket for the period of their "when", or the time they
+     * were received when that could not be parsed. Each bucket is updated with a single upsert,
+     * so a batch of an owner's trades for the same period costs one write. Trades already held by
+     * a bucket, from an earlier delivery of the same records, are left out.
+     * @param trades - trade documents with their _id already assigned
+     * @return the trades appended
+     */
+    public List<Document> append(List<Document> trades, WriteConcern writeConcern) {
+        Set<Object> stored = stored(trades);
+        List<Document> appended = new ArrayList<>(trades.size());
+        Map<List<Object>, List<Document>> periods = new LinkedHashMap<>();
+        for (Document trade : trades) {
+            if (stored.contains(trade.get("_id"))) {
+                continue;
+            }
+            appended.add(trade);
+            long start = Math.floorDiv(period(trade).getTime(), spanMillis) * spanMillis;
+            periods.computeIfAbsent(Arrays.asList(trade.getString("owner"), start), key -> new ArrayList<>()).add(trade);
+        }
+
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        for (Map.Entry<List<Object>, List<Document>> period : periods.entrySet()) {
+            String owner = (String) period.getKey().get(0);
+            long start = (Long) period.getKey().get(1);
+            List<Document> periodTrades = period.getValue();
+            for (int from = 0; from < periodTrades.size(); from += maxTrades) {
+                List<Document> chunk = periodTrades.subList(from, Math.min(from + maxTrades, periodTrades.size()));
+                updates.add(new UpdateOneModel<>(
+                    Filters.and(Filters.eq("owner", owner), Filters.eq("start", new Date(start)),
+                        Filters.lte("count", maxTrades - chunk.size())),
+                    toUpdate(chunk, new Date(start + spanMillis)), UPSERT));
+            }
+        }
+        if (!updates.isEmpty()) {
+            buckets.withWriteConcern(writeConcern).bulkWrite(updates, new BulkWriteOptions().ordered(true));
+        }
+        return appended;
+    }
+
+    // the _ids of these trades that some bucket already holds, read from the primary; an owner's
+    // trades are only ever appended by one writer at a time, so nothing can add them meanwhile
+    private Set<Object> stored(List<Document> trades) {
+        List<Object> ids = new ArrayList<>(trades.size());
+        for (Document trade : trades) {
+            ids.add(trade.get("_id"));
+        }
+        Set<Object> stored = new HashSet<>();
+        for (Document bucket : buckets.find(Filters.in("trades._id", ids)).projection(Projections.include("trades._id"))) {
+            for (Document trade : bucket.getList("trades", Document.class)) {
+                stored.add(trade.get("_id"));
+            }
+        }
+        stored.retainAll(ids);
+        return stored;
+    }
+
+    private static Date period(Document trade) {
+        Object when = trade.get("when");
+        return when instanceof Date ? (Date) when : trade.getObjectId("_id").getDate();
+    }
+
+    private static Bson toUpdate(List<Document> trades, Date end) {
+        Set<String> symbols = new LinkedHashSet<>();
+        ObjectId firstId = null, lastId = null;
+        long shares = 0;
+        double notional = 0, commission = 0;
+        for (Document trade : trades) {
+            ObjectId id = trade.getObjectId("_id");
+            firstId = firstId == null || id.compareTo(firstId) < 0 ? id : firstId;
+            lastId = lastId == null || id.compareTo(lastId) > 0 ? id : lastId;
+            symbols.add(trade.getString("symbol"));
+            shares += trade.getInteger("shares");
+            notional += trade.getDouble("notional");
+            commission += trade.getDouble("commission");
+        }
+        return Updates.combine(
+            Updates.setOnInsert("end", end),
+            Updates.pushEach("trades", trades),
+            Updates.addEachToSet("symbols", new ArrayList<>(symbols)),
+            Updates.inc("count", trades.size()),
+            Updates.inc("sums.shares", shares),
+            Updates.inc("sums.notional", notional),
+            Updates.inc("sums.commission", commission),
+            Updates.min("firstId", firstId),
+            Updates.max("lastId", lastId));
+    }
+
+    /**
+     * The owner's trades from their buckets in _id order, or in time then _id order for a time
+     * range, with the same filters and paging as a query on per-trade documents.
+     * @param symbol - only trades for this symbol, or null for all
+     * @param after - only trades after this one, or null
+     * @param afterWhen - the time of the trade {@code after} when paging a time range, or null
+     * @param from - only trades at or after this time, or null
+     * @param to - only trades before this time, or null
+     * @param limit - maximum trades returned, or 0 for all
+     * @param fields - fields to return, or null for all; _id, and "when" for a range, are always
+     *        included
+     * @param session - the session to read in, or null
+     */
+    public AggregateIterable<RawBsonDocument> trades(String owner, String symbol, ObjectId after, Date afterWhen,
+            Date from, Date to, int limit, Collection<String> fields, ClientSession session) {
+        boolean range = from != null || to != null;
+        List<Bson> bucketFilters = new ArrayList<>(5);
+        List<Bson> tradeFilters = new ArrayList<>(4);
+        bucketFilters.add(Filters.eq("owner", owner));
+        if (symbol != null) {
+            bucketFilters.add(Filters.eq("symbols", symbol));
+            tradeFilters.add(Filters.eq("symbol", symbol));
+        }
+        if (after != null) {
+            bucketFilters.add(afterWhen != null ? Filters.gt("end", afterWhen) : Filters.gt("lastId", after));
+            tradeFilters.add(MongoConnector.afterFilter(after, afterWhen));
+        }
+        if (from != null) {
+            bucketFilters.add(Filters.gt("end", from));
+            tradeFilters.add(Filters.gte("when", from));
+        }
+        if (to != null) {
+            bucketFilters.add(Filters.lt("start", to));
+            tradeFilters.add(Filters.lt("when", to));
+        }
+
+        Bson order = range ? Sorts.ascending("when", "_id") : Sorts.ascending("_id");
+        if (limit > 0) {
+            bound(bucketFilters, tradeFilters, order, range, limit, session);
+        }
+        List<Bson> pipeline = tradePipeline(bucketFilters, tradeFilters, null, order, limit);
+        if (fields != null && !fields.isEmpty()) {
+            Set<String> projected = new LinkedHashSet<>(fields);
+            projected.add("_id");
+            if (range) {
+                projected.add("when");
+            }
+            pipeline.add(Aggregates.project(Projections.include(new ArrayList<>(projected))));
+        }
+        return CausalReads.aggregate(historyReads, session, pipeline, RawBsonDocument.class).allowDiskUse(true);
+    }
+
+    /**
+     * Narrows a page read to the buckets that can hold its trades. Only the first {@code limit}
+     * buckets in order of their first trade are unwound to find a bound, the last trade of a
+     * provisional page: with every bucket holding at least one matching trade, that page is full,
+     * and no trade after the bound can be on the real one. Only buckets starting at or before the
+     * bound are then read, rather than all of the owner's history that matches.
+     */
+    private void bound(List<Bson> bucketFilters, List<Bson> tradeFilters, Bson order, boolean range, int limit,
+            ClientSession session) {
+        if (!tradeFilters.isEmpty()) {
+            bucketFilters.add(Filters.elemMatch("trades", Filters.and(tradeFilters)));
+        }
+        List<Bson> pipeline = tradePipeline(bucketFilters, tradeFilters,
+            Sorts.ascending(range ? "start" : "firstId"), order, limit);
+        pipeline.add(Aggregates.project(Projections.include("_id", "when")));
+        List<Document> provisional = CausalReads.aggregate(historyReads, session, pipeline, Document.class)
+            .allowDiskUse(true).into(new ArrayList<>());
+        if (provisional.size() < limit) {
+            // fewer than limit buckets match, and the page reads no more than these
+            return;
+        }
+        Document last = provisional.get(limit - 1);
+        ObjectId lastId = last.getObjectId("_id");
+        if (range) {
+            Date lastWhen = last.getDate("when");
+            bucketFilters.add(Filters.lte("start", lastWhen));
+            tradeFilters.add(Filters.and(Filters.lte("when", lastWhen),
+                Filters.nor(Filters.and(Filters.eq("when", lastWhen), Filters.gt("_id", lastId)))));
+        } else {
+            bucketFilters.add(Filters.lte("firstId", lastId));
+            tradeFilters.add(Filters.lte("_id", lastId));
+        }
+    }
+
+    /**
+     * @param bucketOrder - order to take buckets in, only when reading the first {@code limit}
+     *        of them, otherwise null
+     */
+    private static List<Bson> tradePipeline(List<Bson> bucketFilters, List<Bson> tradeFilters, Bson bucketOrder,
+            Bson order, int limit) {
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(Aggregates.match(Filters.and(bucketFilters)));
+        if (bucketOrder != null) {
+            pipeline.add(Aggregates.sort(bucketOrder));
+            pipeline.add(Aggregates.limit(limit));
+        }
+        pipeline.add(Aggregates.unwind("$trades"));
+        pipeline.add(Aggregates.replaceRoot("$trades"));
+        if (!tradeFilters.isEmpty()) {
+            pipeline.add(Aggregates.match(Filters.and(tradeFilters)));
+        }
+        // trades arriving late for an earlier period land in an older bucket, so bucket order
+        // is not trade order and the unwound trades are sorted; with a limit this is a top-k sort
+        pipeline.add(Aggregates.sort(order));
+        if (limit > 0) {
+            pipeline.add(Aggregates.limit(limit));
+        }
+        return pipeline;
+    }
+
+    /**
+     * @param session - the session to read in, or null
+     * @return the trade with this _id, from whichever bucket holds it, or null
+     */
+    public Document find(ObjectId id, ClientSession session) {
+        Document bucket = CausalReads.find(historyReads, session, Filters.eq("trades._id", id))
+            .projection(Projections.elemMatch("trades", Filters.eq("_id", id))).first();
+        List<Document> trades = bucket == null ? null : bucket.getList("trades", Document.class);
+        return trades == null || trades.isEmpty() ? null : trades.get(0);
+    }
+
+    /**
+     * @return the _id of the owner's latest bucketed trade, or null if there are none
+     */
+    public ObjectId lastId(String owner) {
+        Document bucket = historyReads.find(Filters.eq("owner", owner))
+            .sort(Sorts.descending("lastId"))
+            .projection(Projections.include("lastId"))
+            .first();
+        return bucket == null ? null : bucket.getObjectId("lastId");
+    }
+
+    /**
+     * @return up to {@code count} of the most recent trades across all owners, newest first
+     */
+    public List<Document> latest(int count) {
+        return buckets.aggregate(Arrays.asList(
+            Aggregates.sort(Sorts.descending("lastId")),
+            Aggregates.limit(count),
+            Aggregates.unwind("$trades"),
+            Aggregates.replaceRoot("$trades"),
+            Aggregates.sort(Sorts.descending("_id")),
+            Aggregates.limit(count))).into(new ArrayList<>());
+    }
+
+    /**
+     * @return shares, notional, commission and trades per owner and symbol, computed from the
+     *         trades in every bucket
+     */
+    public AggregateIterable<Document> positions() {
+        return buckets.aggregate(Arrays.asList(
+            Aggregates.unwind("$trades"),
+            Aggregates.group(new Document("owner", "$trades.owner").append("symbol", "$trades.symbol"),
+                Accumulators.sum("shares", "$trades.shares"),
+                Accumulators.sum("notional", "$trades.notional"),
+                Accumulators.sum("commission", "$trades.commission"),
+                Accumulators.sum("trades", 1)))).allowDiskUse(true);
+    }
+
+    /**
+     * @return the last offset of each source partition among the bucketed trades
+     */
+    public AggregateIterable<Document> offsets() {
+        return buckets.aggregate(Arrays.asList(
+            Aggregates.unwind("$trades"),
+            Aggregates.match(Filters.exists("trades.offset")),
+            Aggregates.group(new Document("topic", "$trades.topic").append("partition", "$trades.partition"),
+                Accumulators.max("offset", "$trades.offset")))).allowDiskUse(true);
+    }
+
+    /**
+     * @return shares, notional, commission and trades per owner, from the bucket sums alone
+     */
+    public AggregateIterable<Document> ownerTotals() {
+        return buckets.aggregate(Arrays.asList(
+            Aggregates.group("$owner",
+                Accumulators.sum("shares", "$sums.shares"),
+                Accumulators.sum("notional", "$sums.notional"),
+                Accumulators.sum("commission", "$sums.commission"),
+                Accumulators.sum("trades", "$count")))).allowDiskUse(true);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import java.nio.ByteBuffer;
+
+import org.bson.types.ObjectId;
+
+/**
+ * The Kafka record a trade was consumed from. A trade's _id is derived from it rather than
+ * generated when the trade is written, so a record delivered again after a rewind maps onto the
+ * trade already stored instead of adding a second one.
+ */
+public class TradeSource {
+
+    // the largest partition and offset the id has room for, as unsigned 16 and 32 bit values
+    public static final int MAX_PARTITION = 0xFFFF;
+    public static final long MAX_OFFSET = 0xFFFFFFFFL;
+
+    private final String topic;
+    private final int partition;
+    private final long offset;
+    private final long timestamp;
+
+    /**
+     * @param timestamp - the record's timestamp in milliseconds, or a negative value if it has none
+     */
+    public TradeSource(String topic, int partition, long offset, long timestamp) {
+        this.topic = topic;
+        this.partition = partition;
+        this.offset = offset;
+        this.timestamp = timestamp;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return whether the partition and offset fit in the id; a record that doesn't can't be
+     *         given one without risking the id of another record, and should not be written
+     */
+    public boolean hasObjectId() {
+        return partition >= 0 && partition <= MAX_PARTITION && offset >= 0 && offset <= MAX_OFFSET;
+    }
+
+    /**
+     * The record's timestamp in seconds, then a hash of the topic, the partition and the offset.
+     * Ids keep to record time like generated ones do to write time, and follow offset order within
+     * a partition. Records without a timestamp, from brokers older than Kafka 0.10, fall back to
+     * the current time and so get a new id on every delivery.
+     *
+     * Because ids follow record time rather than write time, a trade whose record is stamped
+     * earlier than trades already written, as a producer may stamp it, or one consumed late after a
+     * rebalance, sorts before them. A client that has already paged past them with an 'after'
+     * cursor does not see it.
+     * @throws IllegalStateException if the partition or offset does not fit, see {@link #hasObjectId()}
+     */
+    public ObjectId toObjectId() {
+        if (!hasObjectId()) {
+            throw new IllegalStateException(String.format("Partition %d offset %d of %s is out of range for a trade id",
+                partition, offset, topic));
+        }
+        long millis = timestamp >= 0 ? timestamp : System.currentTimeMillis();
+        return new ObjectId(ByteBuffer.allocate(12)
+            .putInt((int) (millis / 1000))
+            .putShort((short) topic.hashCode())
+            .putShort((short) partition)
+            .putInt((int) offset)
+            .array());
+    }
+}
@@ -0,0 +1,34 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import java.util.List;
+
+import org.bson.Document;
+
+/**
+ * CDI event fired once trades have been written, in the order they were written. Observers are
+ * called on the writing thread, so they must hand any slow work off.
+ */
+public class TradesWritten {
+
+    private final List<Document> trades;
+
+    public TradesWritten(List<Document> trades) {
+        this.trades = trades;
+    }
+
+    public List<Document> getTrades() {
+        return trades;
+    }
+}
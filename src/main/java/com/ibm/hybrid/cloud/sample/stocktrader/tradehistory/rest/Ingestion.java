@@ -0,0 +1,93 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.rest;
+
+import javax.annotation.security.RolesAllowed;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.ingest.IngestionService;
+
+import org.eclipse.microprofile.openapi.annotations.Operation;
+import org.json.JSONObject;
+
+import io.swagger.annotations.Api;
+
+@Path("/ingest")
+@Api( tags = {"trade-history"} )
+@Produces("application/json")
+public class Ingestion {
+
+    // the JWT group allowed to pause, resume and rebuild; anyone may read the status
+    static final String ADMIN = "StockTraderAdmin";
+
+    @Inject
+    private IngestionService ingestionService;
+
+    @Path("/status")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Shows the state of the Kafka to Mongo trade ingestion.")
+    public String getStatus() {
+        return new JSONObject()
+            .put("running", ingestionService.isRunning())
+            .put("state", ingestionService.getState().name().toLowerCase())
+            .put("failures", ingestionService.getFailures())
+            .put("lastFailure", ingestionService.getLastFailure() == null ? JSONObject.NULL : ingestionService.getLastFailure())
+            .put("paused", ingestionService.isPaused())
+            .put("pauseAcknowledged", ingestionService.isPauseAcknowledged())
+            .put("tradesWritten", ingestionService.getTradesWritten())
+            .put("batchesWritten", ingestionService.getBatchesWritten())
+            .put("observers", ingestionService.getObserverCount())
+            .put("messagesDropped", ingestionService.getMessagesDropped())
+            .toString();
+    }
+
+    @Path("/pause")
+    @POST
+    @RolesAllowed(ADMIN)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Pauses trade ingestion on this pod without leaving the consumer group.")
+    public String pause() {
+        ingestionService.pause();
+        return getStatus();
+    }
+
+    @Path("/resume")
+    @POST
+    @RolesAllowed(ADMIN)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Resumes paused trade ingestion.")
+    public String resume() {
+        ingestionService.resume();
+        return getStatus();
+    }
+
+    @Path("/positions/rebuild")
+    @POST
+    @RolesAllowed(ADMIN)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Operation(summary = "Regenerates the positions rollup from the trade log, pausing trade ingestion on every pod while it runs.")
+    public Response rebuildPositions() {
+        try {
+            return Response.ok(ingestionService.rebuildPositions().toString()).build();
+        } catch (IllegalStateException e) {
+            return Response.status(Response.Status.CONFLICT).type(MediaType.TEXT_PLAIN).entity(e.getMessage()).build();
+        }
+    }
+}
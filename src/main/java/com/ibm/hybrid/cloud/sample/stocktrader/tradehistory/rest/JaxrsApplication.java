@@ -12,10 +12,17 @@
  */
 package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.rest;
 
+import javax.annotation.security.DeclareRoles;
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.core.Application;
 
+import org.eclipse.microprofile.auth.LoginConfig;
+
+// callers are authenticated by the mpJwt configuration in server.xml; endpoints without
+// @RolesAllowed stay open
 @ApplicationPath("/trade-history")
+@LoginConfig(authMethod = "MP-JWT", realmName = "jwt-jaspi")
+@DeclareRoles({ Ingestion.ADMIN })
 public class JaxrsApplication extends Application {
 
 }
@@ -0,0 +1,100 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.rest;
+
+import java.util.Date;
+
+import javax.inject.Inject;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.MongoConnector;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.OwnerVersion;
+
+/**
+ * Conditional GET for the {@link OwnerVersioned} endpoints. The owner's version is read before
+ * the endpoint runs: if the client's If-None-Match or If-Modified-Since still matches it, the
+ * request is answered 304 without reading anything else; otherwise the response carries it as
+ * its ETag and Last-Modified. The version is stored with the owner's totals and moved on by every
+ * write, whichever pod makes it, so every pod answers alike.
+ *
+ * The endpoints get the version as the request property {@link #VERSION} and read the response
+ * after it, never older than it, even from another member of the replica set than the one the
+ * version came from. A trade written while the response is being read can then only make the
+ * version older than the data, never newer, so the next request fetches again rather than being
+ * wrongly told nothing changed.
+ */
+@Provider
+@OwnerVersioned
+public class OwnerVersionFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    /** the {@link OwnerVersion} the response is tagged with */
+    public static final String VERSION = OwnerVersionFilter.class.getName() + ".version";
+
+    private static final String TAG = OwnerVersionFilter.class.getName() + ".tag";
+    private static final String LAST_MODIFIED = OwnerVersionFilter.class.getName() + ".lastModified";
+
+    @Inject
+    private MongoConnector mConnector;
+
+    @Override
+    public void filter(ContainerRequestContext request) {
+        if (!HttpMethod.GET.equals(request.getMethod()) && !HttpMethod.HEAD.equals(request.getMethod())) {
+            return;
+        }
+        String owner = request.getUriInfo().getPathParameters().getFirst("owner");
+        if (owner == null) {
+            return;
+        }
+        OwnerVersion version = mConnector.getOwnerVersion(owner);
+        EntityTag tag = new EntityTag(version.getTag());
+        Date lastModified = version.getLastModified();
+        if (lastModified != null && lastModified.getTime() + 1000 > System.currentTimeMillis()) {
+            // another change within this same second would keep the same date, so only the tag is safe
+            lastModified = null;
+        }
+        Response.ResponseBuilder notModified = lastModified == null
+            ? request.getRequest().evaluatePreconditions(tag)
+            : request.getRequest().evaluatePreconditions(lastModified, tag);
+        if (notModified != null) {
+            request.abortWith(notModified.tag(tag).lastModified(lastModified).build());
+            return;
+        }
+        request.setProperty(VERSION, version);
+        request.setProperty(TAG, tag);
+        if (lastModified != null) {
+            request.setProperty(LAST_MODIFIED, lastModified);
+        }
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+        Object tag = request.getProperty(TAG);
+        if (tag == null || response.getStatus() != Response.Status.OK.getStatusCode()) {
+            return;
+        }
+        response.getHeaders().putSingle(HttpHeaders.ETAG, tag);
+        if (request.getProperty(LAST_MODIFIED) != null) {
+            response.getHeaders().putSingle(HttpHeaders.LAST_MODIFIED, request.getProperty(LAST_MODIFIED));
+        }
+        // may be kept, but must be revalidated before each use
+        response.getHeaders().putSingle(HttpHeaders.CACHE_CONTROL, "private, no-cache");
+    }
+}
@@ -0,0 +1,334 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.rest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+//Logging (JSR 47)
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedScheduledExecutorService;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.json.JSONObject;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.BsonJsonEncoder;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.MongoConnector;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.TradesWritten;
+
+/**
+ * Registry of the Server-Sent Event streams of new trades, keyed by owner, so a written trade is
+ * only looked at for the owner it belongs to. Each event's id is the trade's _id, which orders an
+ * owner's trades, and each owner keeps its last TRADE_STREAM_BACKLOG events so a client that
+ * reconnects with Last-Event-ID gets whatever it missed. When the backlog doesn't reach back that
+ * far, the client is sent a "gap" event instead and can page the missing trades from
+ * /trades/{owner}?after=<Last-Event-ID>.
+ *
+ * Trades this process writes are streamed as they are written. Trades another pod writes are
+ * found every TRADE_STREAM_POLL_MS from the owner's trade count, persisted with its totals: when
+ * it is ahead of the trades streamed, the ones after the last streamed are read back from the
+ * primary and streamed too. Should more be missing than the backlog holds, or any not be found
+ * after the last one streamed, subscribers are sent a "gap" event rather than being left without
+ * them.
+ */
+@ApplicationScoped
+public class TradeStreams {
+
+    private static Logger logger = Logger.getLogger(TradeStreams.class.getName());
+
+    @Inject
+    @ConfigProperty(name = "TRADE_STREAM_BACKLOG", defaultValue = "100")
+    private int BACKLOG;
+
+    // how long an owner's backlog is kept after its last subscriber has gone, for reconnects
+    @Inject
+    @ConfigProperty(name = "TRADE_STREAM_RETENTION_MS", defaultValue = "300000")
+    private long RETENTION_MS;
+
+    // how often the streamed owners' trade counts are checked for trades written elsewhere; 0 never
+    @Inject
+    @ConfigProperty(name = "TRADE_STREAM_POLL_MS", defaultValue = "1000")
+    private long POLL_MS;
+
+    @Inject
+    private MongoConnector mConnector;
+
+    @Resource
+    private ManagedScheduledExecutorService scheduler;
+
+    private final Map<String, OwnerStream> streams = new ConcurrentHashMap<>();
+
+    // only for the proxy CDI puts in front of the application scoped instance
+    public TradeStreams() {
+    }
+
+    // for tests, without a container: nothing is scheduled, so poll() is called directly
+    TradeStreams(MongoConnector connector, int backlog, long retentionMs) {
+        this.mConnector = connector;
+        BACKLOG = backlog;
+        RETENTION_MS = retentionMs;
+    }
+
+    @PostConstruct
+    void schedulePolling() {
+        if (POLL_MS > 0) {
+            scheduler.scheduleWithFixedDelay(this::poll, POLL_MS, POLL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the trades written since lastEventId, if any, then every new trade for the owner
+     * until the client goes away.
+     */
+    public void subscribe(String owner, String lastEventId, SseEventSink sink, Sse sse) {
+        removeIdle(System.currentTimeMillis());
+        // the owner's trades so far, which the stream starts after; read outside the map's lock
+        OwnerStream created = streams.containsKey(owner) ? null : new OwnerStream(owner, sse);
+        streams.compute(owner, (key, stream) -> {
+            stream = stream != null ? stream : created != null ? created : new OwnerStream(owner, sse);
+            stream.subscribe(lastEventId, sink);
+            return stream;
+        });
+    }
+
+    void onTradesWritten(@Observes TradesWritten event) {
+        if (streams.isEmpty()) {
+            return;
+        }
+        Map<OwnerStream, List<Document>> byOwner = new LinkedHashMap<>();
+        for (Document trade : event.getTrades()) {
+            OwnerStream stream = streams.get(trade.getString("owner"));
+            if (stream != null) {
+                byOwner.computeIfAbsent(stream, key -> new ArrayList<>()).add(trade);
+            }
+        }
+        for (Map.Entry<OwnerStream, List<Document>> trades : byOwner.entrySet()) {
+            trades.getKey().publish(trades.getValue());
+        }
+    }
+
+    /**
+     * Streams the trades other processes have written for the streamed owners since the last
+     * poll, with one read of the trade counts for all of them and one read of trades per owner
+     * that has any.
+     */
+    void poll() {
+        try {
+            if (streams.isEmpty()) {
+                return;
+            }
+            Map<String, Long> counts = mConnector.getTradeCounts(new ArrayList<>(streams.keySet()));
+            for (Map.Entry<String, Long> count : counts.entrySet()) {
+                OwnerStream stream = streams.get(count.getKey());
+                if (stream != null) {
+                    stream.catchUp(count.getValue());
+                }
+            }
+        } catch (RuntimeException e) {
+            // tried again at the next poll
+            logException(e);
+        }
+    }
+
+    // atomic per owner, so a stream is never dropped while it is being subscribed to
+    private void removeIdle(long now) {
+        for (String owner : streams.keySet()) {
+            streams.computeIfPresent(owner, (key, stream) -> stream.isIdleSince(now - RETENTION_MS) ? null : stream);
+        }
+    }
+
+    private class OwnerStream {
+        private final String owner;
+        private final Sse sse;
+        private final List<SseEventSink> sinks = new ArrayList<>();
+        private final ArrayDeque<OutboundSseEvent> backlog = new ArrayDeque<>();
+        private final Set<String> backlogIds = new HashSet<>();
+        // every trade after this one is still in the backlog
+        private ObjectId complete;
+        // the newest trade streamed, or there was when the stream began; null if none
+        private ObjectId last;
+        // the owner's trades streamed, or written before the stream began
+        private long counted;
+        // when the last subscriber was seen
+        private long lastActive = System.currentTimeMillis();
+
+        OwnerStream(String owner, Sse sse) {
+            this.owner = owner;
+            this.sse = sse;
+            Long count = mConnector.getTradeCounts(Collections.singleton(owner)).get(owner);
+            counted = count == null ? 0 : count;
+            last = mConnector.getLastTradeId(owner);
+            // with no trades yet, every one there is will be in the backlog
+            complete = last != null ? last : new ObjectId(new byte[12]);
+        }
+
+        synchronized boolean isIdleSince(long time) {
+            if (sinks.removeIf(SseEventSink::isClosed)) {
+                lastActive = System.currentTimeMillis();
+            }
+            return sinks.isEmpty() && lastActive < time;
+        }
+
+        synchronized void subscribe(String lastEventId, SseEventSink sink) {
+            lastActive = System.currentTimeMillis();
+            if (lastEventId != null && ObjectId.isValid(lastEventId)) {
+                ObjectId lastSeen = new ObjectId(lastEventId);
+                if (lastSeen.compareTo(complete) < 0) {
+                    send(sink, gap(lastEventId));
+                }
+                for (OutboundSseEvent event : backlog) {
+                    if (new ObjectId(event.getId()).compareTo(lastSeen) > 0) {
+                        send(sink, event);
+                    }
+                }
+            }
+            sinks.add(sink);
+        }
+
+        /**
+         * Streams the trades written elsewhere, if the owner's trade count shows there are any.
+         * The trades are read without holding the lock, so the ones written here meanwhile may be
+         * read back too; those are streamed only once.
+         */
+        void catchUp(long count) {
+            ObjectId after;
+            long missing;
+            synchronized (this) {
+                if (count <= counted) {
+                    return;
+                }
+                after = last;
+                missing = count - counted;
+            }
+            List<Document> trades = missing > BACKLOG
+                ? Collections.emptyList() : mConnector.getTradesAfter(owner, after, Math.max(1, BACKLOG));
+            ObjectId latest = missing > BACKLOG ? mConnector.getLastTradeId(owner) : null;
+            synchronized (this) {
+                publish(trades);
+                if (counted < count) {
+                    // more than the backlog holds, or written with ids before the last one streamed
+                    if (latest != null && (last == null || latest.compareTo(last) > 0)) {
+                        last = latest;
+                    }
+                    OutboundSseEvent gap = gap(after != null ? after.toHexString() : null);
+                    for (SseEventSink sink : new ArrayList<>(sinks)) {
+                        send(sink, gap);
+                    }
+                    complete = last != null ? last : complete;
+                    counted = count;
+                }
+            }
+        }
+
+        synchronized void publish(List<Document> trades) {
+            for (Document trade : trades) {
+                ObjectId id = trade.getObjectId("_id");
+                if (!backlogIds.add(id.toHexString())) {
+                    // already streamed
+                    continue;
+                }
+                counted++;
+                if (last == null || id.compareTo(last) > 0) {
+                    last = id;
+                }
+                OutboundSseEvent event = sse.newEventBuilder()
+                    .id(id.toHexString())
+                    .name("trade")
+                    .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                    .data(String.class, BsonJsonEncoder.toJson(trade))
+                    .build();
+                backlog.addLast(event);
+                if (backlog.size() > Math.max(1, BACKLOG)) {
+                    OutboundSseEvent dropped = backlog.removeFirst();
+                    backlogIds.remove(dropped.getId());
+                    complete = new ObjectId(dropped.getId());
+                }
+                for (Iterator<SseEventSink> i = sinks.iterator(); i.hasNext();) {
+                    SseEventSink sink = i.next();
+                    if (sink.isClosed()) {
+                        i.remove();
+                        lastActive = System.currentTimeMillis();
+                    } else {
+                        send(sink, event);
+                    }
+                }
+            }
+        }
+
+        // tells the client to page the trades after the one given from the history instead
+        private OutboundSseEvent gap(String after) {
+            JSONObject data = new JSONObject();
+            if (after != null) {
+                data.put("after", after);
+            }
+            return sse.newEventBuilder()
+                .name("gap")
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(String.class, data.toString())
+                .build();
+        }
+
+        private void send(SseEventSink sink, OutboundSseEvent event) {
+            sink.send(event).whenComplete((result, failure) -> {
+                if (failure != null) {
+                    logException(failure);
+                    remove(sink);
+                }
+            });
+        }
+
+        private synchronized void remove(SseEventSink sink) {
+            if (sinks.remove(sink)) {
+                lastActive = System.currentTimeMillis();
+            }
+            try {
+                sink.close();
+            } catch (RuntimeException e) {
+                // already gone
+            }
+        }
+    }
+
+    private static void logException(Throwable t) {
+        logger.warning(t.getClass().getName()+": "+t.getMessage());
+
+        //only log the stack trace if the level has been set to at least the specified level
+        if (logger.isLoggable(Level.INFO)) {
+            java.io.StringWriter writer = new java.io.StringWriter();
+            t.printStackTrace(new java.io.PrintWriter(writer));
+            logger.info(writer.toString());
+        }
+    }
+}
@@ -12,27 +12,48 @@
  */
 package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.rest;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 //Logging (JSR 47)
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
-import javax.annotation.PostConstruct;
+import javax.inject.Inject;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.AsyncMongoConnector;
 import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.MongoConnector;
-import com.mongodb.MongoClient;
-import com.mongodb.client.FindIterable;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.OwnerVersion;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.Timestamps;
 
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.eclipse.microprofile.openapi.annotations.Operation;
 import org.eclipse.microprofile.openapi.annotations.parameters.Parameter;
 import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
@@ -65,28 +86,19 @@ import io.swagger.annotations.Api;
 public class Trades {
 
 	private static Logger logger = Logger.getLogger(Trades.class.getName());
-    public static MongoConnector mConnector;
 
-    public static MongoConnector getMongoConnector() {
-            if (mConnector == null)
-                mConnector = new MongoConnector();
-            return mConnector;
-    }
-    
-    @PostConstruct
-    public void initialize(){
-        try {
-            mConnector = new MongoConnector();
-        }
-        catch( NullPointerException e) {
-            logException(e);
-        }
-        catch(IllegalArgumentException e) {
-            logException(e);
-        }
-        catch(Exception e) {
-            logException(e);
-        }
+    // application scoped, so every request shares one connector and its client's connection pool
+    @Inject
+    private MongoConnector mConnector;
+
+    @Inject
+    private AsyncMongoConnector asyncConnector;
+
+    @Inject
+    private TradeStreams tradeStreams;
+
+    private MongoConnector getMongoConnector() {
+        return mConnector;
     }
 
     @Path("/latestBuy")
@@ -109,21 +121,44 @@ public class Trades {
         description = "Retrieve the latest record from the mongo database."
     )
     public String latestBuy() {
-        JSONObject json = new JSONObject();
-        MongoClient mClient = getMongoConnector().mongoClient;
-        
-        long dbSize = mClient.getDatabase("test").getCollection("test_collection").count();
-        int approxDbSize = Math.toIntExact(dbSize);
+        List<Document> latest = getMongoConnector().getLatestTrades(1);
+        return latest.isEmpty() ? new JSONObject().toString() : latest.get(0).toJson();
+    }
 
-        FindIterable<Document> docs = mClient.getDatabase("test").getCollection("test_collection").find().skip(approxDbSize - 1);
-        for (Document doc : docs) {
-            json.put("trade", doc.toJson());
+    @Path("/latestBuys")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @APIResponses(value = {
+        @APIResponse(
+            responseCode = "404",
+            description = "The Mongo database cannot be found. ",
+            content = @Content(
+                        mediaType = "text/plain")),
+        @APIResponse(
+            responseCode = "200",
+            description = "The latest trades have been retrieved successfully.",
+            content = @Content(
+                        mediaType = "application/json"))})
+    @Operation(
+        summary = "Shows the latest trades.",
+        description = "Retrieve the most recent trades, newest first, from memory. Only the trades seeded when this instance "
+            + "started and those it has written since are held, so trades written by other instances since it started are "
+            + "left out. At most RECENT_TRADES_SIZE trades are returned."
+    )
+    public String latestBuys(@Parameter(description="Number of trades") @QueryParam("n") @DefaultValue("10") int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (Document doc : getMongoConnector().getLatestTrades(count)) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(doc.toJson());
         }
-        return json.getString("trade");
+        return json.append(']').toString();
     }
 
     @Path("/trades/{owner}")
     @GET
+    @OwnerVersioned
     @Produces(MediaType.APPLICATION_JSON)
     @APIResponses(value = {
         @APIResponse(
@@ -138,15 +173,46 @@ public class Trades {
                 mediaType = "application/json",
                 schema = @Schema(implementation = Quote.class)))})
     @Operation(summary = "Get trade history of specified owner",
-        description = "Get an array of owner's transactions")
-    public String getTradesByOwner(@Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName) {
+        description = "Get an array of owner's transactions. Trades are ordered by the time their "
+            + "Kafka record was stamped, so a trade stamped earlier than ones already paged past with 'after' is not on "
+            + "any later page.")
+    public Response getTradesByOwner(@Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName,
+        @Parameter(description="Maximum number of trades to return, all if not set") @QueryParam("limit") @DefaultValue("0") int limit,
+        @Parameter(description="Cursor returned as 'next' by the previous page") @QueryParam("after") String after,
+        @Parameter(description="Only trades at or after this ISO-8601 time") @QueryParam("from") String from,
+        @Parameter(description="Only trades before this ISO-8601 time") @QueryParam("to") String to,
+        @Parameter(description="Comma separated trade fields to return, all if not set") @QueryParam("fields") String fields,
+        @Context HttpServletRequest request) {
     
-        return getMongoConnector().getTrades(ownerName).toString();
+        return streamTrades(ownerName, null, limit, after, from, to, fields, ownerVersion(request));
+
+    }
+
+    @Path("/trades/{owner}/stream")
+    @GET
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @APIResponses(value = {
+        @APIResponse(
+            responseCode = "200",
+            description = "A 'trade' event is sent for each new trade of the owner, with the trade's _id as its event id.",
+            content = @Content(
+                        mediaType = "text/event-stream"))})
+    @Operation(summary = "Stream the specified owner's new trades as they are written",
+        description = "Reconnect with Last-Event-ID to receive the trades missed in between. A 'gap' event means "
+            + "some were too old to replay; fetch them from /trades/{owner}?after=<Last-Event-ID>.")
+    public void streamNewTrades(
+        @Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName,
+        @HeaderParam(HttpHeaders.LAST_EVENT_ID_HEADER) String lastEventId,
+        @Context SseEventSink sink,
+        @Context Sse sse) {
+
+        tradeStreams.subscribe(ownerName, lastEventId, sink, sse);
 
     }
 
     @Path("/trades/{owner}/{symbol}")
     @GET
+    @OwnerVersioned
     @Produces(MediaType.APPLICATION_JSON)
     @APIResponses(value = {
         @APIResponse(
@@ -161,17 +227,82 @@ public class Trades {
                         mediaType = "application/json",
                         schema = @Schema(implementation = Quote.class)))})
     @Operation(summary = "Get trade histoiry of specified owner for the specified stock symbol",
-        description = "Get an array of the owner's transactions for the specified stock symbol")
-    public String getROI(
+        description = "Get an array of the owner's transactions for the specified stock symbol. Trades are ordered by the time their "
+            + "Kafka record was stamped, so a trade stamped earlier than ones already paged past with 'after' is not on "
+            + "any later page.")
+    public Response getROI(
         @Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName, 
-        @Parameter(description="Symbol name", required = true) @PathParam("symbol") String symbol) {
+        @Parameter(description="Symbol name", required = true) @PathParam("symbol") String symbol,
+        @Parameter(description="Maximum number of trades to return, all if not set") @QueryParam("limit") @DefaultValue("0") int limit,
+        @Parameter(description="Cursor returned as 'next' by the previous page") @QueryParam("after") String after,
+        @Parameter(description="Only trades at or after this ISO-8601 time") @QueryParam("from") String from,
+        @Parameter(description="Only trades before this ISO-8601 time") @QueryParam("to") String to,
+        @Parameter(description="Comma separated trade fields to return, all if not set") @QueryParam("fields") String fields,
+        @Context HttpServletRequest request) {
 
-        return getMongoConnector().getTradesForSymbol(ownerName, symbol).toString();
+        return streamTrades(ownerName, symbol, limit, after, from, to, fields, ownerVersion(request));
+
+    }
 
+    /**
+     * Writes trades to the response as they are read from the cursor, so neither the full
+     * history nor its JSON representation is ever held in memory.
+     */
+    private Response streamTrades(String ownerName, String symbol, int limit, String after, String from, String to, String fields,
+            OwnerVersion version) {
+        if (limit < 0) {
+            throw new BadRequestException("limit must not be negative");
+        }
+        List<String> projection = parseFields(fields);
+        Date fromDate = parseTime("from", from);
+        Date toDate = parseTime("to", to);
+        ObjectId cursor = null;
+        if (after != null && !after.isEmpty()) {
+            if (!ObjectId.isValid(after)) {
+                throw new BadRequestException("Invalid cursor: " + after);
+            }
+            cursor = new ObjectId(after);
+        }
+        MongoConnector connector = getMongoConnector();
+        ObjectId start = cursor;
+        StreamingOutput output = out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            connector.writeTrades(writer, ownerName, symbol, start, fromDate, toDate, limit, projection, version);
+        };
+        return Response.ok(output, MediaType.APPLICATION_JSON).build();
+    }
+
+    private static Date parseTime(String name, String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        Date date = Timestamps.parse(value);
+        if (date == null) {
+            throw new BadRequestException("Invalid " + name + " time: " + value);
+        }
+        return date;
+    }
+
+    private static List<String> parseFields(String fields) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return null;
+        }
+        List<String> projection = new ArrayList<>();
+        for (String field : fields.split(",")) {
+            field = field.trim();
+            if (!MongoConnector.TRADE_FIELDS.contains(field)) {
+                throw new BadRequestException("Unknown field: " + field);
+            }
+            if (!projection.contains(field)) {
+                projection.add(field);
+            }
+        }
+        return projection;
     }
 
     @Path("/shares/{owner}/{symbol}")
     @GET
+    @OwnerVersioned
     @Produces(MediaType.APPLICATION_JSON)
     @APIResponses(value = {
         @APIResponse(
@@ -186,16 +317,18 @@ public class Trades {
                         mediaType = "application/json",
                         schema = @Schema(implementation = Quote.class)))})
     @Operation(summary = "Get the number of shares owned by specified owner for a specified stock symbol.")
-    public String getCurrentShares(
+    public CompletionStage<Response> getCurrentShares(
         @Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName, 
-        @Parameter(description="Symbol name", required = false) @PathParam("symbol") String symbol) {
+        @Parameter(description="Symbol name", required = false) @PathParam("symbol") String symbol,
+        @Context HttpServletRequest request) {
 
-        return getMongoConnector().getSymbolShares(ownerName, symbol).toString();
+        return respond(asyncConnector.getSymbolShares(ownerName, symbol, ownerVersion(request)));
 
     }
 
     @Path("/shares/{owner}")
     @GET
+    @OwnerVersioned
     @Produces(MediaType.APPLICATION_JSON)
     @APIResponses(value = {
         @APIResponse(
@@ -210,14 +343,16 @@ public class Trades {
                         mediaType = "application/json",
                         schema = @Schema(implementation = Quote.class)))})
     @Operation(summary = "Get the number of shares of all owned stock by specified owner.")
-    public String getPortfolioShares(@Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName) {
+    public CompletionStage<Response> getPortfolioShares(@Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName,
+        @Context HttpServletRequest request) {
 
-        return getMongoConnector().getPortfolioSharesJSON(ownerName).toString();
+        return respond(asyncConnector.getPortfolioSharesJSON(ownerName, ownerVersion(request)));
 
     }
 
     @Path("/notional/{owner}")
     @GET
+    @OwnerVersioned
     @Produces(MediaType.APPLICATION_JSON)
     @APIResponses(value = {
         @APIResponse(
@@ -231,15 +366,41 @@ public class Trades {
             content = @Content(
                         mediaType = "application/json",
                         schema = @Schema(implementation = Quote.class)))})
-    public String getNotional(
-        @Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName) {
+    public CompletionStage<Response> getNotional(
+        @Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName,
+        @Context HttpServletRequest request) {
 
-        return getMongoConnector().getTotalNotional(ownerName).toString();
+        return respond(asyncConnector.getTotalNotional(ownerName, ownerVersion(request)));
         
     }
 
+    @Path("/summary/{owner}")
+    @GET
+    @OwnerVersioned
+    @Produces(MediaType.APPLICATION_JSON)
+    @APIResponses(value = {
+        @APIResponse(
+            responseCode = "404",
+            description = "The Mongo database cannot be found.",
+            content = @Content(
+                        mediaType = "text/plain")),
+        @APIResponse(
+            responseCode = "200",
+            description = "The trade summary for the requested owner has been retrieved successfully.",
+            content = @Content(
+                        mediaType = "application/json"))})
+    @Operation(summary = "Get the total notional, commission, shares and number of trades for the specified owner.")
+    public CompletionStage<Response> getSummary(
+        @Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName,
+        @Context HttpServletRequest request) {
+
+        return respond(asyncConnector.getTradeSummary(ownerName, ownerVersion(request)));
+
+    }
+
     @Path("/returns/{owner}")
     @GET
+    @OwnerVersioned
     @Produces(MediaType.APPLICATION_JSON)
     @APIResponses(value = {
         @APIResponse(
@@ -254,13 +415,60 @@ public class Trades {
                         mediaType = "application/json",
                         schema = @Schema(implementation = Quote.class)))})
     @Operation(summary = "Get the percentage return on portfolio for the specified owner, with passed in portfolio value.")
-    public String getReturns(
+    public CompletionStage<Response> getReturns(
         @Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName, 
-        @Parameter(description="Current portfolio value", required = true) @QueryParam("currentValue") Double portfolioValue) {
+        @Parameter(description="Current portfolio value", required = true) @QueryParam("currentValue") Double portfolioValue,
+        @Context HttpServletRequest request) {
 
         logger.info("Getting ROI for "+ownerName+" from Mongo DB");
-        return getMongoConnector().getROI(ownerName, portfolioValue).toString();
+        return respond(asyncConnector.getROI(ownerName, portfolioValue, ownerVersion(request)));
+
+    }
+
+    @Path("/equity/{owner}")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @APIResponses(value = {
+        @APIResponse(
+            responseCode = "404",
+            description = "The Mongo database cannot be found.",
+            content = @Content(
+                        mediaType = "text/plain")),
+        @APIResponse(
+            responseCode = "200",
+            description = "The total equity for the requested owner has been calculated successfully.",
+            content = @Content(
+                        mediaType = "application/json"))})
+    @Operation(summary = "Get the current value of all of the specified owner's shares.",
+        description = "Symbols that couldn't be priced in time are listed under 'unpriced' and left out of the total.")
+    public CompletionStage<Response> getTotalEquity(
+        @Parameter(description="Owner name", required = true) @PathParam("owner") String ownerName,
+        @Context HttpServletRequest request) {
+
+        return respond(asyncConnector.getTotalEquity(ownerName, request.getHeader("Authorization")));
+
+    }
+
+    // the version OwnerVersionFilter tagged the response with; the response is read after it
+    private static OwnerVersion ownerVersion(HttpServletRequest request) {
+        Object version = request.getAttribute(OwnerVersionFilter.VERSION);
+        return version instanceof OwnerVersion ? (OwnerVersion) version : null;
+    }
 
+    /**
+     * Completes the suspended request once the asynchronous read does; no request thread waits
+     * on Mongo in between. A failed read, such as no primary being reachable during a failover,
+     * answers 503 so callers can retry.
+     */
+    private static CompletionStage<Response> respond(CompletionStage<?> result) {
+        return result.handle((value, failure) -> {
+            if (failure != null) {
+                logException(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .type(MediaType.TEXT_PLAIN).entity("Trade history is temporarily unavailable").build();
+            }
+            return Response.ok(String.valueOf(value), MediaType.APPLICATION_JSON).build();
+        });
     }
     
 	private static void logException(Throwable t) {
@@ -0,0 +1,219 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class QuoteCacheTest {
+
+    private static final long TTL_MS = 1000;
+    private static final long MAX_STALE_MS = 1000;
+    private static final long DEADLINE_MS = 2000;
+
+    private final AtomicLong time = new AtomicLong(1000000);
+    private StubClient client;
+
+    @Before
+    public void createClient() {
+        client = new StubClient();
+    }
+
+    private QuoteCache cache(long refreshAheadMs, int maxSize, long batchDeadlineMs) {
+        return new QuoteCache(client, time::get, TTL_MS, refreshAheadMs, MAX_STALE_MS, maxSize, DEADLINE_MS, batchDeadlineMs);
+    }
+
+    @Test
+    public void servesCachedQuoteUntilExpiry() {
+        QuoteCache cache = cache(TTL_MS, 100, DEADLINE_MS);
+        client.price = symbol -> 10.0;
+        assertEquals(10.0, cache.getQuote(null, "IBM").getPrice(), 0);
+
+        client.price = symbol -> 11.0;
+        time.addAndGet(TTL_MS - 1);
+        assertEquals(10.0, cache.getQuote(null, "IBM").getPrice(), 0);
+        assertEquals(1, client.calls("IBM"));
+
+        time.addAndGet(1);
+        assertEquals(11.0, cache.getQuote(null, "IBM").getPrice(), 0);
+        assertEquals(2, client.calls("IBM"));
+    }
+
+    @Test
+    public void refreshesAheadOfExpiry() {
+        QuoteCache cache = cache(TTL_MS / 2, 100, DEADLINE_MS);
+        client.price = symbol -> 10.0;
+        cache.getQuote(null, "IBM");
+
+        // due for a refresh: still served from the cache while one is made
+        client.price = symbol -> 11.0;
+        time.addAndGet(TTL_MS / 2);
+        assertEquals(10.0, cache.getQuote(null, "IBM").getPrice(), 0);
+        assertEquals(2, client.calls("IBM"));
+
+        // the refreshed quote is served, without another call
+        assertEquals(11.0, cache.getQuote(null, "IBM").getPrice(), 0);
+        assertEquals(2, client.calls("IBM"));
+    }
+
+    @Test
+    public void sharesOneCallBetweenConcurrentMisses() throws InterruptedException {
+        QuoteCache cache = cache(TTL_MS, 100, DEADLINE_MS);
+        CompletableFuture<Quote> pending = new CompletableFuture<>();
+        client.pending = pending;
+        Quote[] results = new Quote[2];
+        Thread first = new Thread(() -> results[0] = cache.getQuote(null, "IBM"));
+        Thread second = new Thread(() -> results[1] = cache.getQuote(null, "IBM"));
+        first.start();
+        second.start();
+        // both are waiting on the call once neither is runnable
+        while (first.getState() != Thread.State.TIMED_WAITING || second.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        pending.complete(new Quote("IBM", 10.0, "2019-01-01"));
+        first.join();
+        second.join();
+
+        assertEquals(1, client.calls("IBM"));
+        assertEquals(10.0, results[0].getPrice(), 0);
+        assertEquals(10.0, results[1].getPrice(), 0);
+    }
+
+    @Test
+    public void servesStaleQuoteWithinMaxStale() {
+        QuoteCache cache = cache(TTL_MS, 100, DEADLINE_MS);
+        client.price = symbol -> 10.0;
+        cache.getQuote(null, "IBM");
+
+        client.price = symbol -> null;
+        time.addAndGet(TTL_MS + MAX_STALE_MS - 1);
+        QuoteCache.Quotes quotes = cache.getQuotes(null, Collections.singleton("IBM"));
+        assertEquals(10.0, quotes.getQuotes().get("IBM").getPrice(), 0);
+        assertEquals(Collections.singleton("IBM"), quotes.getStale());
+        assertTrue(quotes.isComplete());
+
+        time.addAndGet(1);
+        quotes = cache.getQuotes(null, Collections.singleton("IBM"));
+        assertNull(quotes.getQuotes().get("IBM"));
+        assertEquals(Collections.singleton("IBM"), quotes.getUnavailable());
+    }
+
+    @Test
+    public void evictsExpiredQuotesFirst() {
+        QuoteCache cache = cache(TTL_MS, 2, DEADLINE_MS);
+        client.price = symbol -> 10.0;
+        cache.getQuote(null, "IBM");
+        time.addAndGet(TTL_MS);
+        cache.getQuote(null, "AAPL");
+        cache.getQuote(null, "GOOG");
+        assertEquals(2, cache.getSize());
+
+        // the fresh quotes were kept
+        cache.getQuote(null, "AAPL");
+        cache.getQuote(null, "GOOG");
+        assertEquals(1, client.calls("AAPL"));
+        assertEquals(1, client.calls("GOOG"));
+
+        // and the cache never grows past its limit
+        for (int i = 0; i < 10; i++) {
+            cache.getQuote(null, "S" + i);
+        }
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void fetchesIndividuallyOnceTheBatchSliceHasPassed() {
+        QuoteCache cache = cache(TTL_MS, 100, 50);
+        client.price = symbol -> 10.0;
+        client.all = new CompletableFuture<>();
+        long start = System.currentTimeMillis();
+        QuoteCache.Quotes quotes = cache.getQuotes(null, Arrays.asList("IBM", "AAPL"));
+
+        assertTrue(quotes.isComplete());
+        assertEquals(2, quotes.getQuotes().size());
+        assertTrue(System.currentTimeMillis() - start < DEADLINE_MS);
+        assertEquals(1, client.calls("IBM"));
+        assertEquals(1, client.calls("AAPL"));
+    }
+
+    @Test
+    public void pricesFromTheBatchWhenItAnswersInTime() {
+        QuoteCache cache = cache(TTL_MS, 100, DEADLINE_MS);
+        client.all = CompletableFuture.completedFuture(new Quote[] {
+            new Quote("IBM", 10.0, "2019-01-01"), new Quote("AAPL", 20.0, "2019-01-01") });
+        QuoteCache.Quotes quotes = cache.getQuotes(null, Arrays.asList("IBM", "AAPL"));
+
+        assertEquals(20.0, quotes.getQuotes().get("AAPL").getPrice(), 0);
+        assertEquals(0, client.calls("IBM"));
+        assertEquals(0, client.calls("AAPL"));
+    }
+
+    private static class StubClient implements StockQuoteClient {
+        // the price each call answers with, null to fail the call
+        volatile Function<String, Double> price = symbol -> null;
+        // when set, every call answers with this instead
+        volatile CompletableFuture<Quote> pending;
+        volatile CompletableFuture<Quote[]> all = new CompletableFuture<>();
+        final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+        int calls(String symbol) {
+            AtomicInteger count = calls.get(symbol);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public Quote[] getAllCachedQuotes(String jwt) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Quote getStockQuote(String jwt, String symbol) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletionStage<Quote[]> getAllCachedQuotesAsync(String jwt) {
+            return all;
+        }
+
+        @Override
+        public CompletionStage<Quote> getStockQuoteAsync(String jwt, String symbol) {
+            calls.computeIfAbsent(symbol, key -> new AtomicInteger()).incrementAndGet();
+            if (pending != null) {
+                return pending;
+            }
+            Double quote = price.apply(symbol);
+            CompletableFuture<Quote> result = new CompletableFuture<>();
+            if (quote == null) {
+                result.completeExceptionally(new IllegalStateException("Quote service unavailable"));
+            } else {
+                result.complete(new Quote(symbol, quote, "2019-01-01"));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.demo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.StockPurchase;
+
+public class BroadcastHubTest {
+
+    private static final int BUFFER_SIZE = 4;
+
+    // offsets of the messages sent, in the order sent
+    private final List<Long> sent = new ArrayList<>();
+    // the handler of the send still outstanding, if any
+    private SendHandler outstanding;
+    private Session session;
+
+    @Before
+    public void createSession() {
+        RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { RemoteEndpoint.Async.class }, (proxy, method, args) -> {
+                if (method.getName().equals("sendBinary")) {
+                    sent.addAll(offsets((ByteBuffer) args[0]));
+                    outstanding = (SendHandler) args[1];
+                }
+                return null;
+            });
+        session = (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Session.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getAsyncRemote":
+                        return remote;
+                    case "getNegotiatedSubprotocol":
+                        return BroadcastHub.BINARY_BATCH_PROTOCOL;
+                    case "isOpen":
+                        return true;
+                    case "getId":
+                        return "test";
+                    default:
+                        return null;
+                }
+            });
+    }
+
+    @Test
+    public void coalescingDeliversEveryTradeUntilTheBufferIsFull() {
+        BroadcastHub hub = new BroadcastHub(BUFFER_SIZE, BroadcastHub.COALESCE, 0, 500);
+        hub.subscribe(session);
+
+        // the first is sent at once, and the rest fill the buffer behind it, all for one pair
+        for (long offset = 0; offset <= BUFFER_SIZE; offset++) {
+            hub.publish(trade(offset, "John", "IBM"));
+        }
+        completeSends();
+
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), sent);
+        assertEquals(0, hub.getMessagesDropped());
+    }
+
+    @Test
+    public void coalescingSupersedesTheOldestTradeForThePairOnceFull() {
+        BroadcastHub hub = new BroadcastHub(BUFFER_SIZE, BroadcastHub.COALESCE, 0, 500);
+        hub.subscribe(session);
+
+        hub.publish(trade(0, "John", "IBM"));
+        hub.publish(trade(1, "John", "IBM"));
+        hub.publish(trade(2, "John", "AAPL"));
+        hub.publish(trade(3, "John", "IBM"));
+        hub.publish(trade(4, "Jane", "IBM"));
+        // full: replaces the oldest unsent IBM trade for John
+        hub.publish(trade(5, "John", "IBM"));
+        // full and nothing for the pair: the oldest unsent trade goes
+        hub.publish(trade(6, "Jane", "AAPL"));
+        completeSends();
+
+        assertEquals(Arrays.asList(0L, 3L, 4L, 5L, 6L), sent);
+        assertEquals(2, hub.getMessagesDropped());
+    }
+
+    @Test
+    public void dropOldestDropsOnlyOnceFull() {
+        BroadcastHub hub = new BroadcastHub(BUFFER_SIZE, BroadcastHub.DROP_OLDEST, 0, 500);
+        hub.subscribe(session);
+
+        for (long offset = 0; offset <= BUFFER_SIZE + 1; offset++) {
+            hub.publish(trade(offset, "John", "IBM"));
+        }
+        completeSends();
+
+        assertEquals(Arrays.asList(0L, 2L, 3L, 4L, 5L), sent);
+        assertEquals(1, hub.getMessagesDropped());
+    }
+
+    private void completeSends() {
+        while (outstanding != null) {
+            SendHandler handler = outstanding;
+            outstanding = null;
+            handler.onResult(new SendResult());
+        }
+    }
+
+    private static DemoConsumedMessage trade(long offset, String owner, String symbol) {
+        return new DemoConsumedMessage("trades", 0, offset,
+            new StockPurchase("id" + offset, owner, symbol, 1, 100.0, "2019-01-01 12:00:00.00", 0.0), offset);
+    }
+
+    // reads the offsets out of a binary batch frame
+    private static List<Long> offsets(ByteBuffer frame) throws IOException {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        List<Long> offsets = new ArrayList<>();
+        for (int count = in.readInt(); count > 0; count--) {
+            in.readInt();
+            offsets.add(in.readLong());
+            in.readLong();
+            in.readInt();
+            in.readDouble();
+            in.readDouble();
+            for (int field = 0; field < 5; field++) {
+                in.readUTF();
+            }
+        }
+        return offsets;
+    }
+}
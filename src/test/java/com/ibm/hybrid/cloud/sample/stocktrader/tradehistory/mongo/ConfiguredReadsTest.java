@@ -0,0 +1,319 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.concurrent.ManagedExecutorService;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoNamespace;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.BsonTimestamp;
+import org.eclipse.microprofile.config.Config;
+import org.eclipse.microprofile.config.spi.ConfigSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The reads behind the REST endpoints are made with the TRADE_HISTORY_* and TRADE_AGGREGATES_*
+ * read preferences, and those behind a versioned response in a session no older than the version.
+ * Reads are recorded by a client that never reaches a server.
+ */
+public class ConfiguredReadsTest {
+
+    private static final String DATABASE = "trades";
+    private static final String TRADES = MongoConnector.TRADE_COLLECTION_NAME;
+    private static final String POSITIONS = TRADES + MongoConnector.POSITIONS_SUFFIX;
+    private static final String OWNER_TOTALS = TRADES + MongoConnector.OWNER_TOTALS_SUFFIX;
+    private static final BsonTimestamp VERSION_TIME = new BsonTimestamp(1500000000, 7);
+
+    private final Map<String, String> settings = new HashMap<>();
+    private RecordingClient client;
+
+    @Before
+    public void createClient() {
+        settings.put("MONGO_DATABASE", DATABASE);
+        client = new RecordingClient();
+    }
+
+    @After
+    public void closeClient() {
+        client.close();
+    }
+
+    @Test
+    public void readsEndpointsWithTheConfiguredReadPreferences() throws Exception {
+        settings.put("TRADE_HISTORY_READ_PREFERENCE", "secondaryPreferred");
+        settings.put("TRADE_AGGREGATES_READ_PREFERENCE", "secondary");
+        MongoReadSettings reads = new MongoReadSettings(new MapConfig(settings));
+        MongoConnector connector = new MongoConnector(client, new MapConfig(settings), reads, "document", "day", 1000, 100);
+        AsyncMongoConnector asyncConnector = new AsyncMongoConnector(client, DATABASE, reads, new DirectExecutor());
+
+        OwnerVersion version = connector.getOwnerVersion("John");
+        assertEquals(VERSION_TIME, version.getOperationTime());
+        assertRead(OWNER_TOTALS, ReadPreference.secondary(), true, null);
+
+        // /trades/{owner}
+        connector.writeTrades(new StringWriter(), "John", null, null, null, null, 10, null, version);
+        assertRead(TRADES, ReadPreference.secondaryPreferred(), true, VERSION_TIME);
+
+        // /shares/{owner}/{symbol} and /shares/{owner}
+        asyncConnector.getSymbolShares("John", "IBM", version).get();
+        assertRead(POSITIONS, ReadPreference.secondary(), true, VERSION_TIME);
+        asyncConnector.getPortfolioSharesJSON("John", version).get();
+        assertRead(POSITIONS, ReadPreference.secondary(), true, VERSION_TIME);
+
+        // /notional, /summary and /returns
+        asyncConnector.getTotalNotional("John", version).get();
+        assertRead(OWNER_TOTALS, ReadPreference.secondary(), true, VERSION_TIME);
+        asyncConnector.getTradeSummary("John", version).get();
+        assertRead(OWNER_TOTALS, ReadPreference.secondary(), true, VERSION_TIME);
+        asyncConnector.getROI("John", 100.0, version).get();
+        assertRead(OWNER_TOTALS, ReadPreference.secondary(), true, VERSION_TIME);
+    }
+
+    @Test
+    public void readsFromThePrimaryWithoutSessionsByDefault() throws Exception {
+        MongoReadSettings reads = new MongoReadSettings(new MapConfig(settings));
+        MongoConnector connector = new MongoConnector(client, new MapConfig(settings), reads, "document", "day", 1000, 100);
+        AsyncMongoConnector asyncConnector = new AsyncMongoConnector(client, DATABASE, reads, new DirectExecutor());
+
+        OwnerVersion version = connector.getOwnerVersion("John");
+        assertNull(version.getOperationTime());
+        assertRead(OWNER_TOTALS, ReadPreference.primary(), false, null);
+
+        connector.writeTrades(new StringWriter(), "John", null, null, null, null, 10, null, version);
+        assertRead(TRADES, ReadPreference.primary(), false, null);
+        asyncConnector.getTradeSummary("John", version).get();
+        assertRead(OWNER_TOTALS, ReadPreference.primary(), false, null);
+        assertEquals(0, client.sessions);
+    }
+
+    // the reads since the last call were all of this collection, as configured
+    private void assertRead(String collection, ReadPreference readPreference, boolean inSession, BsonTimestamp after) {
+        assertTrue("nothing read", !client.reads.isEmpty());
+        for (Read read : client.reads) {
+            assertEquals(collection, read.collection);
+            assertEquals(readPreference, read.readPreference);
+            assertEquals(inSession, read.inSession);
+            assertEquals(after, read.after);
+        }
+        client.reads.clear();
+    }
+
+    private static class Read {
+        final String collection;
+        final ReadPreference readPreference;
+        final boolean inSession;
+        // the operation time the session was advanced to before the read, if it was
+        final BsonTimestamp after;
+
+        Read(String collection, ReadPreference readPreference, boolean inSession, BsonTimestamp after) {
+            this.collection = collection;
+            this.readPreference = readPreference;
+            this.inSession = inSession;
+            this.after = after;
+        }
+    }
+
+    /**
+     * Hands out stand-ins for databases, collections, iterables, cursors and sessions that record
+     * every find and aggregate and find nothing. Nothing is ever sent to the server it is given.
+     */
+    private static class RecordingClient extends MongoClient {
+        final List<Read> reads = Collections.synchronizedList(new ArrayList<>());
+        volatile int sessions;
+
+        RecordingClient() {
+            super(new ServerAddress("localhost", 1), MongoClientOptions.builder().serverSelectionTimeout(0).build());
+        }
+
+        @Override
+        public MongoDatabase getDatabase(String databaseName) {
+            return stub(MongoDatabase.class, new Stub(databaseName, null, ReadPreference.primary()));
+        }
+
+        @Override
+        public ClientSession startSession(ClientSessionOptions options) {
+            sessions++;
+            return stub(ClientSession.class, new SessionStub());
+        }
+
+        private static <T> T stub(Class<T> type, InvocationHandler handler) {
+            return type.cast(Proxy.newProxyInstance(ConfiguredReadsTest.class.getClassLoader(), new Class<?>[] { type }, handler));
+        }
+
+        private class Stub implements InvocationHandler {
+            final String database;
+            final String collection;
+            final ReadPreference readPreference;
+
+            Stub(String database, String collection, ReadPreference readPreference) {
+                this.database = database;
+                this.collection = collection;
+                this.readPreference = readPreference;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getCollection":
+                        return stub(method.getReturnType(), new Stub(database, (String) args[0], ReadPreference.primary()));
+                    case "withReadPreference":
+                        return stub(method.getReturnType(), new Stub(database, collection, (ReadPreference) args[0]));
+                    case "getNamespace":
+                        return new MongoNamespace(database, collection);
+                    case "getCodecRegistry":
+                        return MongoClient.getDefaultCodecRegistry();
+                    case "find":
+                    case "aggregate":
+                        SessionStub session = args != null && args.length > 0 && args[0] instanceof ClientSession
+                            ? (SessionStub) Proxy.getInvocationHandler(args[0]) : null;
+                        reads.add(new Read(collection, readPreference, session != null, session == null ? null : session.advanced));
+                        return stub(method.getReturnType(), this);
+                    case "first":
+                        return null;
+                    case "into":
+                        return args[0];
+                    case "hasNext":
+                        return false;
+                    case "next":
+                        throw new NoSuchElementException();
+                    case "toString":
+                        return "stub of " + collection;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        break;
+                }
+                Class<?> type = method.getReturnType();
+                if (type.isInstance(proxy)) {
+                    // with*, sorts, limits, projections, hints and the like
+                    return proxy;
+                }
+                if (type.isInterface() && type.getName().startsWith("com.mongodb")) {
+                    // iterators and cursors
+                    return stub(type, this);
+                }
+                return type == boolean.class ? Boolean.FALSE : null;
+            }
+        }
+    }
+
+    private static class SessionStub implements InvocationHandler {
+        volatile BsonTimestamp advanced;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "advanceOperationTime":
+                    advanced = (BsonTimestamp) args[0];
+                    return null;
+                case "getOperationTime":
+                    // as if the version had been read at this time
+                    return advanced != null ? advanced : VERSION_TIME;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+            }
+        }
+    }
+
+    private static class MapConfig implements Config {
+        private final Map<String, String> values;
+
+        MapConfig(Map<String, String> values) {
+            this.values = values;
+        }
+
+        @Override
+        public <T> T getValue(String name, Class<T> type) {
+            return getOptionalValue(name, type).orElseThrow(() -> new NoSuchElementException(name));
+        }
+
+        @Override
+        public <T> Optional<T> getOptionalValue(String name, Class<T> type) {
+            return Optional.ofNullable(values.get(name)).map(type::cast);
+        }
+
+        @Override
+        public Iterable<String> getPropertyNames() {
+            return values.keySet();
+        }
+
+        @Override
+        public Iterable<ConfigSource> getConfigSources() {
+            return Collections.emptyList();
+        }
+    }
+
+    private static class DirectExecutor extends AbstractExecutorService implements ManagedExecutorService {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
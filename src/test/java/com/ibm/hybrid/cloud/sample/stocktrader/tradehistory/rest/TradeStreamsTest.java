@@ -0,0 +1,356 @@
+/*
+       Copyright 2018, 2019 IBM Corp All Rights Reserved
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+       http://www.apache.org/licenses/LICENSE-2.0
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseBroadcaster;
+import javax.ws.rs.sse.SseEventSink;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.MongoConnector;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.TradesWritten;
+
+public class TradeStreamsTest {
+
+    private static final String OWNER = "John";
+    private static final int BACKLOG = 3;
+
+    private StubConnector connector;
+    private TradeStreams streams;
+    private final Sse sse = new StubSse();
+    private int seconds = 1500000000;
+
+    @Before
+    public void createStreams() {
+        connector = new StubConnector();
+        streams = new TradeStreams(connector, BACKLOG, 60000);
+    }
+
+    // a trade with an id after every one before it
+    private Document trade() {
+        return new Document("_id", new ObjectId(seconds++, 0)).append("owner", OWNER).append("symbol", "IBM");
+    }
+
+    // a trade written by this process
+    private Document writeHere() {
+        Document trade = connector.store(trade());
+        streams.onTradesWritten(new TradesWritten(Collections.singletonList(trade)));
+        return trade;
+    }
+
+    private RecordingSink subscribe(String lastEventId) {
+        RecordingSink sink = new RecordingSink();
+        streams.subscribe(OWNER, lastEventId, sink, sse);
+        return sink;
+    }
+
+    @Test
+    public void streamsTradesWrittenAfterSubscribing() {
+        Document before = connector.store(trade());
+        RecordingSink sink = subscribe(null);
+        Document trade = writeHere();
+
+        assertEquals(Collections.singletonList("trade"), sink.names());
+        assertEquals(trade.getObjectId("_id").toHexString(), sink.events.get(0).getId());
+        assertTrue(!sink.ids().contains(before.getObjectId("_id").toHexString()));
+    }
+
+    @Test
+    public void resumesFromLastEventIdOutOfTheBacklog() {
+        subscribe(null);
+        Document first = writeHere();
+        Document second = writeHere();
+        Document third = writeHere();
+
+        RecordingSink resumed = subscribe(first.getObjectId("_id").toHexString());
+        assertEquals(Arrays.asList("trade", "trade"), resumed.names());
+        assertEquals(Arrays.asList(second.getObjectId("_id").toHexString(), third.getObjectId("_id").toHexString()),
+            resumed.ids());
+    }
+
+    @Test
+    public void sendsGapWhenLastEventIdIsOlderThanTheBacklog() {
+        subscribe(null);
+        Document first = writeHere();
+        // the one after it is dropped from the backlog too
+        for (int i = 0; i <= BACKLOG; i++) {
+            writeHere();
+        }
+
+        String lastEventId = first.getObjectId("_id").toHexString();
+        RecordingSink resumed = subscribe(lastEventId);
+        assertEquals("gap", resumed.names().get(0));
+        assertEquals(lastEventId, new JSONObject(resumed.data().get(0)).getString("after"));
+        assertEquals(BACKLOG, resumed.names().size() - 1);
+    }
+
+    @Test
+    public void streamsTradesWrittenByAnotherProcess() {
+        RecordingSink sink = subscribe(null);
+        Document elsewhere = connector.store(trade());
+        streams.poll();
+
+        assertEquals(Collections.singletonList(elsewhere.getObjectId("_id").toHexString()), sink.ids());
+
+        // nor streamed again, by the next poll or when the event arrives late
+        streams.poll();
+        streams.onTradesWritten(new TradesWritten(Collections.singletonList(elsewhere)));
+        assertEquals(1, sink.events.size());
+    }
+
+    @Test
+    public void sendsGapWhenMoreWereWrittenElsewhereThanTheBacklogHolds() {
+        Document before = connector.store(trade());
+        RecordingSink sink = subscribe(null);
+        for (int i = 0; i <= BACKLOG; i++) {
+            connector.store(trade());
+        }
+        streams.poll();
+
+        assertEquals(Collections.singletonList("gap"), sink.names());
+        assertEquals(before.getObjectId("_id").toHexString(), new JSONObject(sink.data().get(0)).getString("after"));
+
+        // and the stream carries on from the newest of them
+        Document trade = writeHere();
+        streams.poll();
+        assertEquals(Arrays.asList("gap", "trade"), sink.names());
+        assertEquals(trade.getObjectId("_id").toHexString(), sink.events.get(1).getId());
+    }
+
+    @Test
+    public void sendsGapWhenTradesWereWrittenBeforeTheLastStreamed() {
+        RecordingSink sink = subscribe(null);
+        Document early = trade();
+        Document last = writeHere();
+        // written elsewhere with an earlier id, so it isn't found after the last one streamed
+        connector.store(early);
+        streams.poll();
+
+        assertEquals(Arrays.asList("trade", "gap"), sink.names());
+        assertEquals(last.getObjectId("_id").toHexString(), new JSONObject(sink.data().get(1)).getString("after"));
+    }
+
+    private static class StubConnector extends MongoConnector {
+        final List<Document> trades = new ArrayList<>();
+
+        Document store(Document trade) {
+            trades.add(trade);
+            trades.sort((a, b) -> a.getObjectId("_id").compareTo(b.getObjectId("_id")));
+            return trade;
+        }
+
+        @Override
+        public List<Document> getTradesAfter(String ownerName, ObjectId after, int limit) {
+            return trades.stream()
+                .filter(trade -> ownerName.equals(trade.getString("owner")))
+                .filter(trade -> after == null || trade.getObjectId("_id").compareTo(after) > 0)
+                .limit(limit)
+                .collect(Collectors.toList());
+        }
+
+        @Override
+        public ObjectId getLastTradeId(String ownerName) {
+            List<Document> owned = getTradesAfter(ownerName, null, Integer.MAX_VALUE);
+            return owned.isEmpty() ? null : owned.get(owned.size() - 1).getObjectId("_id");
+        }
+
+        @Override
+        public Map<String, Long> getTradeCounts(Collection<String> ownerNames) {
+            Map<String, Long> counts = new HashMap<>();
+            for (Document trade : trades) {
+                if (ownerNames.contains(trade.getString("owner"))) {
+                    counts.merge(trade.getString("owner"), 1L, Long::sum);
+                }
+            }
+            return counts;
+        }
+    }
+
+    private static class RecordingSink implements SseEventSink {
+        final List<OutboundSseEvent> events = new ArrayList<>();
+        boolean closed;
+
+        List<String> names() {
+            return events.stream().map(OutboundSseEvent::getName).collect(Collectors.toList());
+        }
+
+        List<String> ids() {
+            return events.stream().filter(event -> "trade".equals(event.getName()))
+                .map(OutboundSseEvent::getId).collect(Collectors.toList());
+        }
+
+        List<String> data() {
+            return events.stream().map(event -> (String) event.getData()).collect(Collectors.toList());
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public CompletionStage<?> send(OutboundSseEvent event) {
+            events.add(event);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class StubSse implements Sse {
+        @Override
+        public OutboundSseEvent.Builder newEventBuilder() {
+            return new StubEvent();
+        }
+
+        @Override
+        public SseBroadcaster newBroadcaster() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class StubEvent implements OutboundSseEvent, OutboundSseEvent.Builder {
+        private String id;
+        private String name;
+        private String comment;
+        private MediaType mediaType;
+        private Object data;
+        private long reconnectDelay = -1;
+
+        @Override
+        public Builder id(String id) {
+            this.id = id;
+            return this;
+        }
+
+        @Override
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        @Override
+        public Builder reconnectDelay(long milliseconds) {
+            this.reconnectDelay = milliseconds;
+            return this;
+        }
+
+        @Override
+        public Builder mediaType(MediaType mediaType) {
+            this.mediaType = mediaType;
+            return this;
+        }
+
+        @Override
+        public Builder comment(String comment) {
+            this.comment = comment;
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Builder data(Class type, Object data) {
+            this.data = data;
+            return this;
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Builder data(GenericType type, Object data) {
+            this.data = data;
+            return this;
+        }
+
+        @Override
+        public Builder data(Object data) {
+            this.data = data;
+            return this;
+        }
+
+        @Override
+        public OutboundSseEvent build() {
+            return this;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getComment() {
+            return comment;
+        }
+
+        @Override
+        public long getReconnectDelay() {
+            return reconnectDelay;
+        }
+
+        @Override
+        public boolean isReconnectDelaySet() {
+            return reconnectDelay >= 0;
+        }
+
+        @Override
+        public Class<?> getType() {
+            return data == null ? null : data.getClass();
+        }
+
+        @Override
+        public Type getGenericType() {
+            return getType();
+        }
+
+        @Override
+        public MediaType getMediaType() {
+            return mediaType;
+        }
+
+        @Override
+        public Object getData() {
+            return data;
+        }
+    }
+}
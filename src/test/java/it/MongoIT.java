@@ -23,11 +23,15 @@ import com.mongodb.client.FindIterable;
 import com.mongodb.client.MapReduceIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.MongoCredential;
+import com.mongodb.MongoException;
 import com.mongodb.client.model.Filters;
 import com.mongodb.MongoSocketException;
 
 import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.MongoConnector;
 import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.StockPurchase;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.StockPurchaseBatch;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.TradeSource;
+import com.ibm.hybrid.cloud.sample.stocktrader.tradehistory.mongo.Timestamps;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
@@ -35,8 +39,11 @@ import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Response;
 
+import org.bson.types.ObjectId;
 import org.json.JSONObject;
 
+import java.io.StringWriter;
+
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.Test;
@@ -75,7 +82,7 @@ public class MongoIT extends EndpointHelper {
         assertEquals(transaction.getString("topic"), "getTradesTest");
         assertEquals(transaction.getString("commission"), "1.0");
         assertEquals(transaction.getString("id"), "User");
-        assertEquals(transaction.getString("when"), "2008-01-01 12:00:01.01");
+        assertEquals(transaction.getString("when"), "2008-01-01T12:00:01.010Z");
     }
 
     @Test
@@ -87,11 +94,209 @@ public class MongoIT extends EndpointHelper {
     }
 
 
+    @Test
+    public void getTradeSummaryTest(){
+        mConnector.insertStockPurchase(new StockPurchase("UserSummary1", "UserSummary", "IBM", 10, 2.00, "2008-01-01 12:00:01.01", 1.00), "getTradeSummaryTest");
+        mConnector.insertStockPurchase(new StockPurchase("UserSummary2", "UserSummary", "AAPL", 5, 4.00, "2008-01-01 12:00:01.01", 0.50), "getTradeSummaryTest");
+
+        JSONObject summary = mConnector.getTradeSummary("UserSummary");
+        assertEquals(40.0, summary.getDouble("notional"), 0.0);
+        assertEquals(1.5, summary.getDouble("commission"), 0.0);
+        assertEquals(15.0, summary.getDouble("shares"), 0.0);
+        assertEquals(2, summary.getLong("trades"));
+    }
+
+    @Test
+    public void redeliveredBatchTest(){
+        StockPurchaseBatch batch = new StockPurchaseBatch(10, 0);
+        batch.add(new StockPurchase("UserRedelivered1", "UserRedelivered", "IBM", 2, 3.00, "2008-01-01 12:00:01.01", 1.00),
+            new TradeSource("redeliveredBatchTest", 0, 10, 1199188801000L));
+        assertEquals(1, mConnector.insertStockPurchases(batch));
+
+        // the same record again, now with one that was never written
+        batch.add(new StockPurchase("UserRedelivered2", "UserRedelivered", "IBM", 1, 3.00, "2008-01-01 12:00:02.01", 1.00),
+            new TradeSource("redeliveredBatchTest", 0, 11, 1199188802000L));
+        assertEquals(1, mConnector.insertStockPurchases(batch));
+
+        assertEquals(2, mConnector.getTrades("UserRedelivered").getJSONArray("transactions").length());
+        assertEquals(2, mConnector.getTradeSummary("UserRedelivered").getLong("trades"));
+
+        // a rebuild counts them from the trade log, and a later delivery still isn't counted again
+        mConnector.rebuildPositions();
+        assertEquals(0, mConnector.insertStockPurchases(batch));
+        assertEquals(2, mConnector.getTradeSummary("UserRedelivered").getLong("trades"));
+        assertEquals("3.0", mConnector.getSymbolShares("UserRedelivered", "IBM").getJSONArray("shares").getJSONObject(0).getString("value"));
+    }
+
+    @Test
+    public void ownerVersionTest(){
+        // another pod, reading the same collections
+        MongoConnector otherPod = new MongoConnector(mongoClient, TEST_MONGO_DATABASE, TEST_MONGO_COLLECTION, "document");
+        String before = otherPod.getOwnerVersion("UserVersion").getTag();
+        String other = otherPod.getOwnerVersion("UserVersionOther").getTag();
+        mConnector.insertStockPurchase(new StockPurchase("UserVersion1", "UserVersion", "IBM", 1, 1.00, "2008-01-01 12:00:01.01", 0.00), "ownerVersionTest");
+
+        String after = otherPod.getOwnerVersion("UserVersion").getTag();
+        assertTrue(!before.equals(after));
+        assertEquals(after, mConnector.getOwnerVersion("UserVersion").getTag());
+        assertEquals(other, otherPod.getOwnerVersion("UserVersionOther").getTag());
+
+        // a rebuild moves every owner on to a version not handed out before
+        mConnector.rebuildPositions();
+        assertTrue(!after.equals(otherPod.getOwnerVersion("UserVersion").getTag()));
+    }
+
+    @Test
+    public void getPortfolioSharesTest(){
+        mConnector.insertStockPurchase(new StockPurchase("UserShares1", "UserShares", "IBM", 2, 10.00, "2008-01-01 12:00:01.01", 1.00), "getPortfolioSharesTest");
+        mConnector.insertStockPurchase(new StockPurchase("UserShares2", "UserShares", "IBM", 1, 12.00, "2008-01-02 12:00:01.01", 1.00), "getPortfolioSharesTest");
+
+        JSONObject shares = mConnector.getPortfolioSharesJSON("UserShares").getJSONArray("shares").getJSONObject(0);
+        assertEquals("IBM", shares.getString("_id"));
+        assertEquals("3.0", shares.getString("value"));
+
+        JSONObject notional = mConnector.getSymbolNotional("UserShares", "IBM").getJSONArray("notional").getJSONObject(0);
+        assertEquals("32.0", notional.getString("value"));
+    }
+
+
+    @Test
+    public void rebuildPositionsTest(){
+        mConnector.insertStockPurchase(new StockPurchase("UserRebuild1", "UserRebuild", "IBM", 4, 5.00, "2008-01-01 12:00:01.01", 1.00), "rebuildPositionsTest");
+        mConnector.insertStockPurchase(new StockPurchase("UserRebuild2", "UserRebuild", "IBM", 6, 5.00, "2008-01-01 12:00:01.01", 1.00), "rebuildPositionsTest");
+        String before = mConnector.getSymbolShares("UserRebuild", "IBM").toString();
+
+        mConnector.rebuildPositions();
+
+        assertEquals(before, mConnector.getSymbolShares("UserRebuild", "IBM").toString());
+        assertEquals("10.0", mConnector.getSymbolShares("UserRebuild", "IBM").getJSONArray("shares").getJSONObject(0).getString("value"));
+        assertEquals(2, mConnector.getTradeSummary("UserRebuild").getLong("trades"));
+    }
+
+
+    @Test
+    public void rebuildClaimPausesWritersTest(){
+        ObjectId claim = mConnector.claimRebuild(600000);
+        try {
+            assertTrue(claim != null);
+            assertEquals(null, mConnector.claimRebuild(600000));
+            assertEquals(claim, mConnector.getRebuildClaim());
+
+            mConnector.reportConsumer("rebuildClaimTest", null);
+            assertTrue(mConnector.getConsumersNotPausedFor(claim, 30000).contains("rebuildClaimTest"));
+            mConnector.reportConsumer("rebuildClaimTest", claim);
+            assertTrue(!mConnector.getConsumersNotPausedFor(claim, 30000).contains("rebuildClaimTest"));
+
+            try {
+                mConnector.insertStockPurchase(new StockPurchase("UserClaim1", "UserClaim", "IBM", 1, 1.00, "2008-01-01 12:00:01.01", 0.00), "rebuildClaimTest");
+                assertTrue("rollups updated during a rebuild", false);
+            } catch (MongoException e) {
+                // refused until the rebuild is released
+            }
+        } finally {
+            mConnector.removeConsumer("rebuildClaimTest");
+            mConnector.releaseRebuild(claim);
+        }
+        assertEquals(null, mConnector.getRebuildClaim());
+    }
+
+
+    @Test
+    public void getLatestTradesTest(){
+        mConnector.insertStockPurchase(new StockPurchase("UserLatest1", "UserLatest", "IBM", 1, 1.00, "2008-01-01 12:00:01.01", 0.00), "getLatestTradesTest");
+        mConnector.insertStockPurchase(new StockPurchase("UserLatest2", "UserLatest", "IBM", 1, 1.00, "2008-01-01 12:00:02.01", 0.00), "getLatestTradesTest");
+
+        assertEquals("UserLatest2", mConnector.getLatestTrades(2).get(0).getString("id"));
+        assertEquals("UserLatest1", mConnector.getLatestTrades(2).get(1).getString("id"));
+    }
+
+
+    @Test
+    public void writeTradesPagingTest() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            mConnector.insertStockPurchase(new StockPurchase("UserPaging" + i, "UserPaging", "IBM", 1, 1.00, "2008-01-01 12:00:01.01", 0.00), "writeTradesPagingTest");
+        }
+
+        StringWriter firstPage = new StringWriter();
+        mConnector.writeTrades(firstPage, "UserPaging", null, null, null, null, 2, null, null);
+        JSONObject first = new JSONObject(firstPage.toString());
+        assertEquals(2, first.getJSONArray("transactions").length());
+        assertEquals("UserPaging1", first.getJSONArray("transactions").getJSONObject(0).getString("id"));
+        assertEquals(1, first.getJSONArray("transactions").getJSONObject(0).get("shares"));
+        assertEquals(1.0, first.getJSONArray("transactions").getJSONObject(0).get("price"));
+
+        StringWriter secondPage = new StringWriter();
+        mConnector.writeTrades(secondPage, "UserPaging", "IBM", new ObjectId(first.getString("next")), null, null, 2, null, null);
+        JSONObject second = new JSONObject(secondPage.toString());
+        assertEquals(1, second.getJSONArray("transactions").length());
+        assertEquals("UserPaging3", second.getJSONArray("transactions").getJSONObject(0).getString("id"));
+        assertTrue(!second.has("next"));
+    }
+
+    @Test
+    public void writeTradesRangeTest() throws Exception {
+        mConnector.insertStockPurchase(new StockPurchase("UserRange1", "UserRange", "IBM", 1, 1.00, "2008-01-01 12:00:00", 0.00), "writeTradesRangeTest");
+        mConnector.insertStockPurchase(new StockPurchase("UserRange2", "UserRange", "IBM", 1, 1.00, "2008-02-01T12:00:00Z", 0.00), "writeTradesRangeTest");
+        mConnector.insertStockPurchase(new StockPurchase("UserRange3", "UserRange", "IBM", 1, 1.00, "2008-03-01 12:00:00", 0.00), "writeTradesRangeTest");
+
+        StringWriter range = new StringWriter();
+        mConnector.writeTrades(range, "UserRange", null, null, Timestamps.parse("2008-01-15"), Timestamps.parse("2008-03-01T12:00:00Z"), 0, null, null);
+        JSONObject trades = new JSONObject(range.toString());
+        assertEquals(1, trades.getJSONArray("transactions").length());
+        assertEquals("UserRange2", trades.getJSONArray("transactions").getJSONObject(0).getString("id"));
+        assertEquals("2008-02-01T12:00:00Z", trades.getJSONArray("transactions").getJSONObject(0).getString("when"));
+    }
+
+    @Test
+    public void writeTradesRangePagingTest() throws Exception {
+        // written out of time order, so time order and _id order differ
+        mConnector.insertStockPurchase(new StockPurchase("UserRangePage1", "UserRangePage", "IBM", 1, 1.00, "2008-01-03 12:00:00", 0.00), "writeTradesRangePagingTest");
+        mConnector.insertStockPurchase(new StockPurchase("UserRangePage2", "UserRangePage", "IBM", 1, 1.00, "2008-01-01 12:00:00", 0.00), "writeTradesRangePagingTest");
+        mConnector.insertStockPurchase(new StockPurchase("UserRangePage3", "UserRangePage", "IBM", 1, 1.00, "2008-01-02 12:00:00", 0.00), "writeTradesRangePagingTest");
+
+        StringBuilder ids = new StringBuilder();
+        ObjectId after = null;
+        do {
+            StringWriter page = new StringWriter();
+            mConnector.writeTrades(page, "UserRangePage", null, after, Timestamps.parse("2008-01-01"), Timestamps.parse("2008-02-01"), 1, null, null);
+            JSONObject trades = new JSONObject(page.toString());
+            for (int i = 0; i < trades.getJSONArray("transactions").length(); i++) {
+                ids.append(trades.getJSONArray("transactions").getJSONObject(i).getString("id")).append(',');
+            }
+            after = trades.has("next") ? new ObjectId(trades.getString("next")) : null;
+        } while (after != null);
+        assertEquals("UserRangePage2,UserRangePage3,UserRangePage1,", ids.toString());
+    }
+
+    @Test
+    public void bucketStorageTest() throws Exception {
+        MongoConnector buckets = new MongoConnector(mongoClient, TEST_MONGO_DATABASE, TEST_MONGO_COLLECTION + "_bucketed", "bucket");
+        buckets.ensureIndexes();
+        buckets.insertStockPurchase(new StockPurchase("UserBucket1", "UserBucket", "IBM", 1, 1.00, "2008-01-01 12:00:00", 0.00), "bucketStorageTest");
+        buckets.insertStockPurchase(new StockPurchase("UserBucket2", "UserBucket", "AAPL", 2, 1.00, "2008-01-01 13:00:00", 0.00), "bucketStorageTest");
+        buckets.insertStockPurchase(new StockPurchase("UserBucket3", "UserBucket", "IBM", 3, 1.00, "2008-01-02 12:00:00", 0.00), "bucketStorageTest");
+
+        assertEquals(2, mongoClient.getDatabase(TEST_MONGO_DATABASE)
+            .getCollection(TEST_MONGO_COLLECTION + "_bucketed_buckets").countDocuments(Filters.eq("owner", "UserBucket")));
+        assertEquals(3, buckets.getTrades("UserBucket").getJSONArray("transactions").length());
+
+        StringWriter page = new StringWriter();
+        buckets.writeTrades(page, "UserBucket", "IBM", null, null, null, 1, null, null);
+        JSONObject first = new JSONObject(page.toString());
+        assertEquals("UserBucket1", first.getJSONArray("transactions").getJSONObject(0).getString("id"));
+
+        page = new StringWriter();
+        buckets.writeTrades(page, "UserBucket", "IBM", new ObjectId(first.getString("next")), null, null, 1, null, null);
+        assertEquals("UserBucket3", new JSONObject(page.toString()).getJSONArray("transactions").getJSONObject(0).getString("id"));
+    }
+
+
     @BeforeClass
     public static void initializeMockMongoDB(){
         ServerAddress sa = new ServerAddress(TEST_MONGO_HOST, TEST_MONGO_PORT);
         mongoClient = new MongoClient(sa);
         mConnector = new MongoConnector(mongoClient, TEST_MONGO_DATABASE, TEST_MONGO_COLLECTION);
+        mConnector.ensureIndexes();
      }
 
      @AfterClass